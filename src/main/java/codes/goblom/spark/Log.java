@@ -25,14 +25,7 @@ public final class Log {
     private static final Map<String, Log> FIND = Maps.newConcurrentMap();
     
     public static Log getMain() {
-        Log log = FIND.get(Spark.getMainInstance().getName());
-        
-        if (log == null) {
-            log = new Log(Spark.getMainInstance());
-            FIND.put(Spark.getMainInstance().getName(), log);
-        }
-        
-        return log;
+        return find(Spark.getMainInstance());
     }
     
     public static Log find(@NonNull Plugin plugin) {
@@ -16,7 +16,7 @@ public final class MainSparkConfigs {
     
     private MainSparkConfigs() { }
     
-    public static final YamlConfig DEFAULT = (YamlConfig) Spark.getMainInstance().getConfig("config");
+    public static final YamlConfig DEFAULT = (YamlConfig) Spark.getSparkInstance().getConfig("config");
     
-    public static final YamlConfig CORE = (YamlConfig) Spark.getMainInstance().getConfig("core");
+    public static final YamlConfig CORE = (YamlConfig) Spark.getSparkInstance().getConfig("core");
 }
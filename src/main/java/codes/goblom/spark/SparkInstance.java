@@ -7,7 +7,6 @@ package codes.goblom.spark;
 
 import codes.goblom.spark.internals.commands.DefaultSparkCommand;
 import codes.goblom.spark.internals.misc.SparkPluginsCommand;
-import codes.goblom.spark.internals.monitor.Monitors;
 import com.google.common.collect.ImmutableList;
 
 /**
@@ -29,8 +28,6 @@ public final class SparkInstance extends SparkPlugin {
     public void load() {
         ImmutableList.of("plugins", "pl").forEach((name) -> { new SparkPluginsCommand(name); });
         ImmutableList.of("spark", "spk", "sk").forEach((name) -> { new DefaultSparkCommand(name); });
-        
-        Monitors.loadAll();
     }
 
     @Override
@@ -19,9 +19,11 @@ import codes.goblom.spark.misc.tools.BukkitDevUpdater;
 import codes.goblom.spark.misc.tools.Metrics;
 import codes.goblom.spark.misc.tools.SpigotUpdater;
 import codes.goblom.spark.misc.utils.PlayerUtils;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import java.io.File;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import net.burngames.jafig.Jafig;
@@ -45,6 +47,7 @@ import java.util.Map.Entry;
  */
 public abstract class SparkPlugin extends JavaPlugin implements Spark {
     private final Map<String, Config> configs = Maps.newConcurrentMap();
+    private final List<AutoCloseable> closeOnDisable = Lists.newArrayList();
     
     public SparkPlugin() {
         super();
@@ -63,6 +66,16 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
     
     public void disable() { }
     
+    /**
+     * Closes something after {@link #disable()}, in the reverse order they
+     * were added
+     */
+    public final void closeOnDisable(AutoCloseable closeable) {
+        synchronized (closeOnDisable) {
+            closeOnDisable.add(closeable);
+        }
+    }
+    
     @Override // If you override this make sure to call super.onLoad()
     public final void onLoad() { load(); }
     
@@ -77,6 +90,26 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
             core.set("auto-update.download", true, true);
             core.set("auto-update.notify", true, true);
         }
+        if (!core.contains("tasks.main-thread-budget-ms")) core.set("tasks.main-thread-budget-ms", 5, true);
+        if (!core.contains("tasks.blocking-executor")) {
+            core.set("tasks.blocking-executor", false, true);
+            core.set("tasks.virtual-threads", true, true);
+            core.set("tasks.blocking-concurrency", 64, true);
+        }
+        if (!core.contains("tasks.metrics")) core.set("tasks.metrics", false, true);
+        if (!core.contains("watchdog")) {
+            core.set("watchdog.threshold-ms", 100, true);
+            core.set("watchdog.sample-interval-ms", 5, true);
+            core.set("watchdog.cooldown-seconds", 30, true);
+        }
+        if (!core.contains("monitors.budget-action")) {
+            core.set("monitors.budget-action", "log", true);
+            core.set("monitors.budget-strikes", 5, true);
+        }
+        if (!core.contains("gc")) {
+            core.set("gc.old-gen-alert-percent", 85, true);
+            core.set("gc.old-gen-alert-seconds", 60, true);
+        }
         
         // Finished core config loading
 
@@ -90,7 +123,7 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
         Jafig.addSerializer(new WorldSerializer());
 
         if (core.get("enable-metrics", true)) {
-            new AsyncTask<Metrics>((Metrics object, Throwable error) -> {
+            new AsyncTask<Metrics>(this, (Metrics object, Throwable error) -> {
                 if (error == null) {
                     Log.find(this).info("Metrics started successfully.");
                 } else {
@@ -115,7 +148,7 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
 //            Log.severe("%s was unable to start. There was an error. (located above)", getName());
 //        }
         
-        Monitors.loadAll();
+        Monitors.loadAll(this);
         enabled();
     }
     
@@ -127,6 +160,19 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
 //            t.printStackTrace();
 //            Log.severe("There was an error while disabling %s. (located above)", getName());
 //        } 
+        
+        synchronized (closeOnDisable) {
+            for (AutoCloseable closeable : Lists.reverse(closeOnDisable)) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    Log.find(this).severe("Unable to close %s while disabling. Error: %s", closeable, e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+            
+            closeOnDisable.clear();
+        }
             
         Iterator<Entry<Conversable, ConversationSequencer>> it = ConversationApi.iterator();
         
@@ -197,7 +243,7 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
     @Deprecated
     protected void runBukkitDevUpdater(int projectId) {
         if (getConfig("core").get("auto-update.check", true)) {
-            new AsyncTask<BukkitDevUpdater>((final BukkitDevUpdater updater, Throwable error) -> {
+            new AsyncTask<BukkitDevUpdater>(this, (final BukkitDevUpdater updater, Throwable error) -> {
                 if (error != null) {
                     final Listener listener = new Listener() {
                         @EventHandler
@@ -210,7 +256,7 @@ public abstract class SparkPlugin extends JavaPlugin implements Spark {
                         }
                     };
                     
-                    new SyncTask<Void>() {
+                    new SyncTask<Void>(SparkPlugin.this) {
                         @Override
                         public Void execute() throws Throwable {
                             if (MainSparkConfigs.CORE.get("auto-update.notify", true)) {
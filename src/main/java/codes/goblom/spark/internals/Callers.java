@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals;
+
+import codes.goblom.spark.SparkInstance;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Finds the Spark plugin that is calling into Spark.
+ *
+ * Walks the classes on the stack of the current thread instead of building a
+ * full stack trace, so no {@link StackTraceElement}s are created and no
+ * classes are looked up by name. The plugin that provides each class is
+ * cached.
+ *
+ * On Java 9 and later the stack is walked lazily with {@code StackWalker},
+ * found reflectively since Spark is built for Java 8. On Java 8 the class
+ * context of a {@link SecurityManager} is used instead.
+ *
+ * @author Goblom
+ */
+final class Callers {
+
+    private static final String SPARK_PACKAGE = "codes.goblom.spark.";
+    private static final Walker WALKER = StackWalkerWalker.create();
+
+    // An IllegalStateException is thrown out of it, so it is not cached
+    private static final ClassValue<Spark> PLUGINS = new ClassValue<Spark>() {
+        @Override
+        protected Spark computeValue(Class<?> type) {
+            try {
+                JavaPlugin plugin = JavaPlugin.getProvidingPlugin(type);
+
+                return plugin instanceof Spark ? (Spark) plugin : null;
+            } catch (IllegalArgumentException e) {
+                return null; // Not loaded by a plugin
+            }
+        }
+    };
+
+    private Callers() { }
+
+    /**
+     * @return the first Spark plugin found outside of Spark itself, or the
+     * main Spark instance if there is none
+     */
+    static Spark find() {
+        Spark spark = WALKER.find();
+
+        return spark != null ? spark : main();
+    }
+
+    static Spark main() {
+        return JavaPlugin.getPlugin(SparkInstance.class);
+    }
+
+    private static Spark pluginOf(Class<?> clazz) {
+        if (clazz.getName().startsWith(SPARK_PACKAGE)) {
+            return null;
+        }
+
+        try {
+            return PLUGINS.get(clazz);
+        } catch (IllegalStateException e) {
+            return null; // Its plugin is still being created, asked again next time
+        }
+    }
+
+    private static interface Walker {
+
+        /**
+         * @return the first Spark plugin outside of Spark on the stack, or
+         * null if there is none
+         */
+        Spark find();
+    }
+
+    private static final class StackWalkerWalker implements Walker {
+        private final Object walker;
+        private final MethodHandle walk;
+        private final MethodHandle declaringClass;
+        private final Function<Stream<?>, Spark> first = (frames) -> frames.map(this::classOf)
+                                                                           .map(Callers::pluginOf)
+                                                                           .filter(Objects::nonNull)
+                                                                           .findFirst()
+                                                                           .orElse(null);
+
+        private StackWalkerWalker(Object walker, MethodHandle walk, MethodHandle declaringClass) {
+            this.walker = walker;
+            this.walk = walk;
+            this.declaringClass = declaringClass;
+        }
+
+        /**
+         * @return a walker using StackWalker, or the class context one on
+         * Java 8
+         */
+        static Walker create() {
+            try {
+                Class<?> type = Class.forName("java.lang.StackWalker");
+                Class<?> option = Class.forName("java.lang.StackWalker$Option");
+                Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+                Object retain = option.getField("RETAIN_CLASS_REFERENCE").get(null);
+                Object walker = type.getMethod("getInstance", option).invoke(null, retain);
+
+                return new StackWalkerWalker(walker,
+                        lookup.findVirtual(type, "walk", MethodType.methodType(Object.class, Function.class)),
+                        lookup.findVirtual(frame, "getDeclaringClass", MethodType.methodType(Class.class)));
+            } catch (ReflectiveOperationException e) {
+                return new ClassContextWalker();
+            }
+        }
+
+        @Override
+        public Spark find() {
+            try {
+                return (Spark) walk.invoke(walker, first);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        private Class<?> classOf(Object frame) {
+            try {
+                return (Class<?>) declaringClass.invoke(frame);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+
+    // Java 8 only, SecurityManager is deprecated for removal later on
+    @SuppressWarnings("removal")
+    private static final class ClassContextWalker extends SecurityManager implements Walker {
+
+        @Override
+        public Spark find() {
+            for (Class<?> clazz : getClassContext()) {
+                Spark spark = pluginOf(clazz);
+
+                if (spark != null) {
+                    return spark;
+                }
+            }
+
+            return null;
+        }
+    }
+}
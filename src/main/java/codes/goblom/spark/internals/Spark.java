@@ -6,12 +6,10 @@
 package codes.goblom.spark.internals;
 
 import codes.goblom.spark.MainSparkConfigs;
-import codes.goblom.spark.SparkInstance;
 import codes.goblom.spark.configuration.Config;
 import codes.goblom.spark.configuration.ConfigType;
 import codes.goblom.spark.internals.monitor.Monitor;
 import codes.goblom.spark.internals.monitor.Monitors;
-import codes.goblom.spark.reflection.safe.SafeClass;
 import codes.goblom.spark.reflection.safe.SafeField;
 import java.io.File;
 import org.bukkit.Bukkit;
@@ -34,36 +32,23 @@ public interface Spark extends Plugin {
         return MainSparkConfigs.CORE.get("log.debug", false);
     }
     
+    /**
+     * Finds the Spark plugin that called into Spark. Falls back to Spark
+     * itself when the caller is not a Spark plugin.
+     * 
+     * Prefer passing your plugin explicitly (for example
+     * {@code new AsyncTask<T>(plugin)}) on hot paths, this still has to look
+     * at the calling thread's stack.
+     */
     public static Spark getMainInstance() {
-        StackTraceElement[] element = Thread.currentThread().getStackTrace();
-//        for (int i = 0; i < element.length; i++) {
-//            System.out.println(String.format("[%s] --> %s", i, element[i].getClassName()));
-//        }
-        
-        Class clazz = new SafeClass(element[1].getClassName()).unsafe2();
-        try {
-            if (clazz.equals(SparkInstance.class)) {
-                return (Spark) JavaPlugin.getPlugin(SparkInstance.class);
-            }
-        } catch (Exception e) { }
-        
-        JavaPlugin plugin = JavaPlugin.getProvidingPlugin(clazz);
-        
-        if (plugin == null) {
-            throw new UnsupportedOperationException("Calling plugin cannot be null");
-        }
-        
-        if (!(plugin instanceof Spark)) {
-            throw new UnsupportedOperationException("Can only get caller plugin if plugin is a SparkPlugin");
-        }
-        
-        Spark spark = (Spark) plugin;
-        
-        if (spark == null) {
-            throw new Error("If you get this then something is definitly screwed up. Please message @DevGoblom on twitter");
-        }
-        
-        return spark;
+        return Callers.find();
+    }
+    
+    /**
+     * @return the Spark plugin itself, regardless of who is calling
+     */
+    public static Spark getSparkInstance() {
+        return Callers.main();
     }
     
     Config getConfig(String file);
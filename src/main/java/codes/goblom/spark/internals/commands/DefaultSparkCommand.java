@@ -10,6 +10,7 @@ import codes.goblom.spark.internals.Callback;
 import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.Spark;
 import codes.goblom.spark.internals.task.AsyncTask;
+import codes.goblom.spark.internals.task.TaskMetrics;
 import codes.goblom.spark.misc.utils.Utils;
 import codes.goblom.spark.reflection.safe.SafeField;
 import com.google.common.collect.Lists;
@@ -125,7 +126,7 @@ public final class DefaultSparkCommand extends Command {
 
                 @Override
                 public Boolean execute() throws Throwable {
-                    return cmd.execute(ExecutorArgs.wrap(sender, prepare(1, args)));
+                    return timed(cmd, ExecutorArgs.wrap(sender, prepare(1, args)));
                 }
 
             }.run();
@@ -134,7 +135,7 @@ public final class DefaultSparkCommand extends Command {
         }
         
         try {
-            return cmd.execute(ExecutorArgs.wrap(sender, prepare(1, args)));
+            return timed(cmd, ExecutorArgs.wrap(sender, prepare(1, args)));
         } catch (Throwable t) {
             if (cmd.canSendError()) {
                 Log.sendErrorMessage(sender, t.getMessage());
@@ -145,6 +146,20 @@ public final class DefaultSparkCommand extends Command {
         return false;
     }
     
+    static boolean timed(SparkCommand cmd, ExecutorArgs args) throws Throwable {
+        TaskMetrics.Sample sample = TaskMetrics.begin(0);
+        boolean failed = true;
+        
+        try {
+            boolean result = cmd.execute(args);
+            failed = false;
+            
+            return result;
+        } finally {
+            TaskMetrics.end(sample, cmd.getClass(), "Command", failed);
+        }
+    }
+    
     protected static String[] prepare(int startAt, String[] args) {
         if (args.length == 1) {
             return new String[0];
@@ -74,7 +74,7 @@ final class MainCommandWrapper extends Command {
     @Override
     public boolean execute(CommandSender sender, String commandLabel, String[] args) {
         try {
-            return command.execute(ExecutorArgs.wrap(sender, args));
+            return DefaultSparkCommand.timed(command, ExecutorArgs.wrap(sender, args));
         } catch (Throwable t) {
             t.printStackTrace();
             
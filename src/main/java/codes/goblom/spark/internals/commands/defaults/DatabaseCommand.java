@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.commands.defaults;
+
+import codes.goblom.spark.internals.ExecutorArgs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.tools.Histogram;
+import codes.goblom.spark.misc.database.QueryMetrics;
+import codes.goblom.spark.misc.utils.PlayerUtils;
+import java.util.List;
+import lombok.Getter;
+import org.bukkit.command.CommandSender;
+
+/**
+ *
+ * @author Goblom
+ */
+public final class DatabaseCommand implements SparkCommand {
+
+    private static final int SHOWN = 10;
+    private static final int WIDTH = 80;
+
+    @Getter
+    private final String[] aliases = { "db", "database", "sql" };
+
+    @Getter
+    private final String description = "Display the slowest database queries";
+
+    @Getter
+    private final String usage = "/spark db [slow|on|off|reset]";
+
+    @Getter
+    private final String permission = "spark.command.db";
+
+    @Override
+    public Boolean execute(ExecutorArgs args) throws Throwable {
+        CommandSender sender = getSender(args);
+
+        if (getArgs(args).length >= 1) {
+            switch (getArgAt(args, 0).toLowerCase()) {
+                case "on":
+                    QueryMetrics.setEnabled(true);
+                    PlayerUtils.sendMessage(sender, "&aQuery metrics enabled.");
+                    return true;
+                case "off":
+                    QueryMetrics.setEnabled(false);
+                    PlayerUtils.sendMessage(sender, "&cQuery metrics disabled.");
+                    return true;
+                case "reset":
+                    QueryMetrics.reset();
+                    PlayerUtils.sendMessage(sender, "&aQuery metrics reset.");
+                    return true;
+                case "slow":
+                    List<QueryMetrics.Slow> slow = QueryMetrics.getSlow();
+
+                    PlayerUtils.sendMessage(sender, "&6Last %s queries over %sms:", slow.size(), QueryMetrics.getSlowThreshold());
+
+                    for (QueryMetrics.Slow s : slow) {
+                        PlayerUtils.sendMessage(sender, "&e%sms &7%ss ago &f%s rows &7%s",
+                                s.getMillis(), (System.currentTimeMillis() - s.getAt()) / 1000, s.getRows(), shorten(s.getTemplate()));
+                    }
+
+                    return true;
+            }
+        }
+
+        if (!QueryMetrics.isEnabled()) {
+            PlayerUtils.sendMessage(sender, "&cQuery metrics are disabled. Use /spark db on");
+            return true;
+        }
+
+        List<QueryMetrics.Stats> stats = QueryMetrics.getStats();
+
+        PlayerUtils.sendMessage(sender, "&6Queries (%s) by total time:", stats.size());
+
+        for (int i = 0; i < stats.size() && i < SHOWN; i++) {
+            QueryMetrics.Stats s = stats.get(i);
+            Histogram time = s.getTime();
+
+            PlayerUtils.sendMessage(sender, "&e%s &fx%s total %s p50 %s p99 %s held p99 %s rows %s%s",
+                    shorten(s.getTemplate()), time.getCount(), millis(time.getTotal()),
+                    millis(time.getPercentile(50)), millis(time.getPercentile(99)),
+                    millis(s.getHeld().getPercentile(99)), s.getRows(),
+                    s.getFailures() > 0 ? String.format(" &cfailed %s", s.getFailures()) : "");
+        }
+
+        return true;
+    }
+
+    private static String shorten(String sql) {
+        return sql.length() <= WIDTH ? sql : sql.substring(0, WIDTH - 3) + "...";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1000000D);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.commands.defaults;
+
+import codes.goblom.spark.internals.ExecutorArgs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.monitor.Monitors;
+import codes.goblom.spark.internals.monitor.types.WatchdogMonitor;
+import codes.goblom.spark.misc.utils.PlayerUtils;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import lombok.Getter;
+import org.bukkit.command.CommandSender;
+
+/**
+ *
+ * @author Goblom
+ */
+public final class LagCommand implements SparkCommand {
+
+    @Getter
+    private final String[] aliases = { "lag", "spikes", "watchdog" };
+
+    @Getter
+    private final String description = "Display recent lag spikes and where the main thread was";
+
+    @Getter
+    private final String usage = "/spark lag [number]";
+
+    @Getter
+    private final String permission = "spark.command.lag";
+
+    @Override
+    public Boolean execute(ExecutorArgs args) throws Throwable {
+        CommandSender sender = getSender(args);
+        WatchdogMonitor watchdog = Monitors.getLoaded(WatchdogMonitor.class);
+
+        if (watchdog == null) {
+            PlayerUtils.sendMessage(sender, "&cThe watchdog is not running.");
+            return true;
+        }
+
+        List<WatchdogMonitor.Report> reports = watchdog.getReports();
+
+        if (reports.isEmpty()) {
+            PlayerUtils.sendMessage(sender, "&aNo lag spikes recorded.");
+            return true;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+
+        if (getArgs(args).length >= 1) {
+            int index;
+
+            try {
+                index = Integer.parseInt(getArgAt(args, 0)) - 1;
+            } catch (NumberFormatException e) {
+                PlayerUtils.sendMessage(sender, "&cUsage: %s", usage);
+                return true;
+            }
+
+            if (index < 0 || index >= reports.size()) {
+                PlayerUtils.sendMessage(sender, "&cThere are only %s reports.", reports.size());
+                return true;
+            }
+
+            WatchdogMonitor.Report report = reports.get(index);
+
+            PlayerUtils.sendMessage(sender, "&6Spike #%s at %s: &f%sms, %s samples", index + 1, format.format(new Date(report.getTime())), report.getDuration(), report.getSamples());
+            PlayerUtils.sendMessage(sender, "&ePlugins: &f%s", String.join(", ", report.getPlugins()));
+
+            for (String frame : report.getFrames()) {
+                PlayerUtils.sendMessage(sender, "&7  %s", frame);
+            }
+
+            return true;
+        }
+
+        PlayerUtils.sendMessage(sender, "&6Lag spikes (%s), newest first:", reports.size());
+
+        for (int i = 0; i < reports.size(); i++) {
+            WatchdogMonitor.Report report = reports.get(i);
+
+            PlayerUtils.sendMessage(sender, "&e#%s &7%s &f%sms &7%s", i + 1, format.format(new Date(report.getTime())), report.getDuration(), report.getPlugins().isEmpty() ? "" : report.getPlugins().get(0));
+        }
+
+        return true;
+    }
+}
@@ -8,10 +8,14 @@ package codes.goblom.spark.internals.commands.defaults;
 import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.commands.SparkCommand;
 import codes.goblom.spark.internals.monitor.Monitor;
+import codes.goblom.spark.internals.monitor.MonitorStats;
 import codes.goblom.spark.internals.monitor.Monitors;
 import codes.goblom.spark.misc.utils.PlayerUtils;
+import com.google.common.collect.Lists;
 import java.util.Iterator;
+import java.util.List;
 import lombok.Getter;
+import org.bukkit.command.CommandSender;
 
 /**
  *
@@ -23,27 +27,79 @@ public final class MonitorCommand implements SparkCommand {
     private final String[] aliases = { "monitor", "monitors", "lm", "m" };
 
     @Getter
-    private final String description = "Display all currently loaded monitors";
+    private final String description = "Display all currently loaded monitors and how long they take";
+
+    @Getter
+    private final String usage = "/spark monitors [reset|resume <monitor>]";
 
     @Override
     public Boolean execute(ExecutorArgs args) throws Throwable {
-        Iterator<Monitor> it = Monitors.iterator();
-        StringBuilder sb = new StringBuilder();
-        int size = 0;
+        CommandSender sender = getSender(args);
+        
+        if (getArgs(args).length >= 1) {
+            switch (getArgAt(args, 0).toLowerCase()) {
+                case "reset":
+                    Monitors.forEach((monitor) -> {
+                        if (monitor.getStats() != null) {
+                            monitor.getStats().reset();
+                        }
+                    });
+                    
+                    PlayerUtils.sendMessage(sender, "&aMonitor timings reset.");
+                    return true;
+                case "resume":
+                    if (getArgs(args).length < 2) {
+                        PlayerUtils.sendMessage(sender, "&c%s", getUsage());
+                        return true;
+                    }
+                    
+                    Iterator<Monitor> it = Monitors.iterator();
+                    
+                    while (it.hasNext()) {
+                        Monitor monitor = it.next();
+                        
+                        if (monitor.getName().equalsIgnoreCase(getArgAt(args, 1)) && monitor.getStats() != null) {
+                            monitor.getStats().resume();
+                            PlayerUtils.sendMessage(sender, "&aResumed Monitor[%s].", monitor.getName());
+                            return true;
+                        }
+                    }
+                    
+                    PlayerUtils.sendMessage(sender, "&cNo monitor named %s is loaded.", getArgAt(args, 1));
+                    return true;
+            }
+        }
+        
+        List<Monitor> monitors = Lists.newArrayList(Monitors.iterator());
+                      monitors.sort((a, b) -> Long.compare(total(b), total(a)));
         
-        while (it.hasNext()) {
-            size++;
-            Monitor monitor = it.next();
+        PlayerUtils.sendMessage(sender, "&6Monitors (%s):", monitors.size());
+        
+        for (Monitor monitor : monitors) {
+            MonitorStats stats = monitor.getStats();
             
-            if (sb.length() > 0) {
-                sb.append(", ");
+            if (stats == null) {
+                PlayerUtils.sendMessage(sender, "&e%s &7(not running)", monitor.getName());
+                continue;
             }
             
-            sb.append(monitor.getClass().getSimpleName());
+            PlayerUtils.sendMessage(sender, "&e%s &fx%s avg %s p99 %s max %s%s%s",
+                    monitor.getName(), stats.getCount(),
+                    millis(stats.getMean()), millis(stats.getPercentile(99)), millis(stats.getMax()),
+                    stats.getBudget() > 0 ? String.format(" &7budget %s overruns %s", millis(stats.getBudget()), stats.getOverruns()) : "",
+                    stats.isSuspended() ? " &c(suspended)" : "");
         }
         
-        PlayerUtils.sendMessage(getSender(args), "Monitors (%s): %s", size, sb.toString());
         return true;
     }
-
+    
+    private static long total(Monitor monitor) {
+        MonitorStats stats = monitor.getStats();
+        
+        return stats == null ? 0 : stats.getMean() * stats.getCount();
+    }
+    
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1000000D);
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.commands.defaults;
+
+import codes.goblom.spark.internals.ExecutorArgs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.task.TaskMetrics;
+import codes.goblom.spark.internals.tools.Histogram;
+import codes.goblom.spark.misc.utils.PlayerUtils;
+import java.util.List;
+import lombok.Getter;
+import org.bukkit.command.CommandSender;
+
+/**
+ *
+ * @author Goblom
+ */
+public final class TasksCommand implements SparkCommand {
+
+    private static final int SHOWN = 10;
+
+    @Getter
+    private final String[] aliases = { "tasks", "task", "t" };
+
+    @Getter
+    private final String description = "Display the slowest tasks and commands";
+
+    @Getter
+    private final String usage = "/spark tasks [on|off|reset]";
+
+    @Getter
+    private final String permission = "spark.command.tasks";
+
+    @Override
+    public Boolean execute(ExecutorArgs args) throws Throwable {
+        CommandSender sender = getSender(args);
+
+        if (getArgs(args).length >= 1) {
+            switch (getArgAt(args, 0).toLowerCase()) {
+                case "on":
+                    TaskMetrics.setEnabled(true);
+                    PlayerUtils.sendMessage(sender, "&aTask metrics enabled.");
+                    return true;
+                case "off":
+                    TaskMetrics.setEnabled(false);
+                    PlayerUtils.sendMessage(sender, "&cTask metrics disabled.");
+                    return true;
+                case "reset":
+                    TaskMetrics.reset();
+                    PlayerUtils.sendMessage(sender, "&aTask metrics reset.");
+                    return true;
+            }
+        }
+
+        if (!TaskMetrics.isEnabled()) {
+            PlayerUtils.sendMessage(sender, "&cTask metrics are disabled. Use /spark tasks on");
+            return true;
+        }
+
+        List<TaskMetrics.Stats> stats = TaskMetrics.getStats();
+
+        PlayerUtils.sendMessage(sender, "&6Tasks (%s) by total time:", stats.size());
+
+        for (int i = 0; i < stats.size() && i < SHOWN; i++) {
+            TaskMetrics.Stats s = stats.get(i);
+            Histogram runtime = s.getRuntime();
+            long alloc = s.getAllocatedPerRun();
+
+            PlayerUtils.sendMessage(sender, "&e%s &7(%s) &fx%s p50 %s p99 %s max %s wait p99 %s%s%s",
+                    s.getName(), s.getOwner(), runtime.getCount(),
+                    millis(runtime.getPercentile(50)), millis(runtime.getPercentile(99)), millis(runtime.getMax()),
+                    millis(s.getWait().getPercentile(99)),
+                    alloc >= 0 ? String.format(" alloc %skb", alloc / 1024) : "",
+                    s.getFailures() > 0 ? String.format(" &cfailed %s", s.getFailures()) : "");
+        }
+
+        return true;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1000000D);
+    }
+}
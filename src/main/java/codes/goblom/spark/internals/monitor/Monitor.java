@@ -11,14 +11,13 @@ import java.lang.annotation.RetentionPolicy;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
 
 /**
  *
  * @author Goblom
  */
 public abstract class Monitor {
-    BukkitTask runner;
+    MonitorDriver.Handle runner;
     
     protected Monitor() { }
     
@@ -42,6 +41,13 @@ public abstract class Monitor {
         return JavaPlugin.getProvidingPlugin(getClass());
     }
     
+    /**
+     * @return timings of this monitors updates, or null if it was never started
+     */
+    public final MonitorStats getStats() {
+        return runner == null ? null : runner.stats;
+    }
+    
     public abstract void update();
     
     @Retention( RetentionPolicy.RUNTIME )
@@ -52,4 +58,19 @@ public abstract class Monitor {
     
     @Retention( RetentionPolicy.RUNTIME )
     public @interface Async { }
+    
+    /**
+     * Monitors marked with this are never loaded by {@link Monitors#loadAll(JavaPlugin)},
+     * only by calling {@link Monitors#load(Class)} or {@link Monitors#loadNoStore(Class)}
+     */
+    @Retention( RetentionPolicy.RUNTIME )
+    public @interface Manual { }
+    
+    /**
+     * Milliseconds a single update may take. Monitors that go over it too
+     * often are logged, or suspended if {@code monitors.budget-action} is
+     * set to suspend
+     */
+    @Retention( RetentionPolicy.RUNTIME )
+    public @interface Budget { /* long value() */ }
 }
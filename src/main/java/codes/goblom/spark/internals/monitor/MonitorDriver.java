@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.SparkInstance;
+import com.google.common.collect.Maps;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Runs every {@link Monitor} from one sync and one async scheduler task
+ * instead of one task per monitor.
+ *
+ * Monitors are kept in a queue ordered by the tick they are next due on.
+ * Monitors that share an interval are spread over the ticks of that interval
+ * so they do not all run on the same tick.
+ *
+ * @author Goblom
+ */
+final class MonitorDriver implements Runnable {
+
+    static final MonitorDriver SYNC = new MonitorDriver(false);
+    static final MonitorDriver ASYNC = new MonitorDriver(true);
+
+    static Handle schedule(Monitor monitor, long delay, long interval, long budget, boolean async) {
+        return (async ? ASYNC : SYNC).add(monitor, delay, interval, budget);
+    }
+
+    private final boolean async;
+    private final Queue<Handle> incoming = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Handle> due = new PriorityQueue<>((a, b) -> Long.compare(a.next, b.next));
+    private final Map<Long, Integer> phases = Maps.newHashMap();
+    private final AtomicLong tick = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private BukkitTask task;
+
+    private MonitorDriver(boolean async) {
+        this.async = async;
+    }
+
+    private Handle add(Monitor monitor, long delay, long interval, long budget) {
+        Handle handle = new Handle(monitor, monitor.getOwningPlugin(), Math.max(0, delay), Math.max(1, interval), new MonitorStats(TimeUnit.MILLISECONDS.toNanos(Math.max(0, budget))));
+
+        incoming.offer(handle);
+        start();
+
+        return handle;
+    }
+
+    private synchronized void start() {
+        if (task != null) {
+            return;
+        }
+
+        Plugin spark = JavaPlugin.getPlugin(SparkInstance.class);
+
+        if (async) {
+            task = Bukkit.getScheduler().runTaskTimerAsynchronously(spark, this, 1L, 1L);
+        } else {
+            task = Bukkit.getScheduler().runTaskTimer(spark, this, 1L, 1L);
+        }
+    }
+
+    private synchronized void stopIfIdle() {
+        if (due.isEmpty() && incoming.isEmpty() && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        final long now = tick.incrementAndGet();
+
+        // Async timers may overlap if a monitor runs long, let the running one catch up
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Handle handle;
+
+            while ((handle = incoming.poll()) != null) {
+                long phase = 0;
+
+                if (handle.interval > 1) {
+                    int count = phases.getOrDefault(handle.interval, 0);
+                    phase = count % handle.interval;
+
+                    phases.put(handle.interval, count + 1);
+                }
+
+                handle.next = now + handle.delay + phase;
+                due.offer(handle);
+            }
+
+            while ((handle = due.peek()) != null && handle.next <= now) {
+                due.poll();
+
+                if (handle.cancelled || !handle.plugin.isEnabled()) {
+                    handle.cancelled = true;
+                    continue;
+                }
+
+                if (!handle.stats.isSuspended()) {
+                    update(handle);
+                }
+
+                handle.next = now + handle.interval;
+                due.offer(handle);
+            }
+        } finally {
+            running.set(false);
+        }
+
+        if (due.isEmpty()) {
+            stopIfIdle();
+        }
+    }
+
+    private void update(Handle handle) {
+        long start = System.nanoTime();
+
+        try {
+            handle.monitor.update();
+        } catch (Throwable t) {
+            Log.find(handle.plugin).severe("Monitor[%s] threw an error while updating. Error: %s", handle.monitor.getName(), t.getMessage());
+            t.printStackTrace();
+        }
+
+        long took = System.nanoTime() - start;
+        int strikes = handle.stats.record(took);
+
+        if (strikes != 0 && strikes % MainSparkConfigs.CORE.get("monitors.budget-strikes", 5) == 0) {
+            long budget = TimeUnit.NANOSECONDS.toMillis(handle.stats.getBudget());
+
+            if ("suspend".equalsIgnoreCase(MainSparkConfigs.CORE.get("monitors.budget-action", "log"))) {
+                handle.stats.suspend();
+                Log.find(handle.plugin).warning("Monitor[%s] went over its %sms budget %s times in a row and was suspended. Use /spark monitors resume %s", handle.monitor.getName(), budget, strikes, handle.monitor.getName());
+            } else {
+                Log.find(handle.plugin).warning("Monitor[%s] went over its %sms budget %s times in a row, last update took %sms", handle.monitor.getName(), budget, strikes, TimeUnit.NANOSECONDS.toMillis(took));
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    static final class Handle {
+        final Monitor monitor;
+        final Plugin plugin;
+        final long delay;
+        final long interval;
+        final MonitorStats stats;
+
+        long next;
+        volatile boolean cancelled = false;
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes every {@link Monitor} a plugin contains to {@link #INDEX} while the
+ * plugin is being compiled, so {@link Monitors} does not have to scan the
+ * plugin jar on enable.
+ *
+ * Only monitors that can be created without a {@link codes.goblom.spark.internals.policy.LoadPolicy}
+ * are written, that is concrete classes with a no argument constructor that
+ * are not marked {@link Monitor.Manual}.
+ *
+ * The processor is picked up automatically when Spark is on the compile
+ * classpath.
+ *
+ * @author Goblom
+ */
+@SupportedAnnotationTypes("*")
+public final class MonitorIndexProcessor extends AbstractProcessor {
+
+    public static final String INDEX = "META-INF/spark/monitors.idx";
+
+    // Not Monitor.class, the processor path may not have Bukkit or Guava on it
+    private static final String MONITOR = "codes.goblom.spark.internals.monitor.Monitor";
+    private static final String MANUAL = MONITOR + ".Manual";
+
+    private final Set<String> found = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        TypeElement monitor = processingEnv.getElementUtils().getTypeElement(MONITOR);
+
+        if (monitor == null) {
+            return false; // Spark is not on the classpath
+        }
+
+        if (round.processingOver()) {
+            write(monitor.asType());
+        } else {
+            for (TypeElement type : ElementFilter.typesIn(round.getRootElements())) {
+                scan(type, monitor.asType());
+            }
+        }
+
+        return false;
+    }
+
+    private void scan(TypeElement type, TypeMirror monitor) {
+        if (isLoadable(type) && processingEnv.getTypeUtils().isSubtype(type.asType(), monitor)) {
+            found.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        }
+
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            if (nested.getModifiers().contains(Modifier.STATIC)) {
+                scan(nested, monitor);
+            }
+        }
+    }
+
+    private static boolean isLoadable(TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+
+        for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+            if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(MANUAL)) {
+                return false;
+            }
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void write(TypeMirror monitor) {
+        Set<String> entries = new TreeSet<>(found);
+
+        // Keep entries from an earlier, incremental, compile that are still monitors
+        try {
+            FileObject old = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+
+            try (BufferedReader reader = new BufferedReader(old.openReader(true))) {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+
+                    TypeElement type = processingEnv.getElementUtils().getTypeElement(line.replace('$', '.'));
+
+                    if (type != null && isLoadable(type) && processingEnv.getTypeUtils().isSubtype(type.asType(), monitor)) {
+                        entries.add(line);
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) { } // No earlier index
+
+        // Written even when empty, without an index Monitors scans the whole plugin on every enable
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX, new Element[0]);
+
+            try (Writer writer = index.openWriter()) {
+                writer.write("# Generated by " + getClass().getName() + "\n");
+
+                for (String entry : entries) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Unable to write " + INDEX + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor;
+
+import codes.goblom.spark.internals.tools.Histogram;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Timings of every {@link Monitor#update()} call of a single monitor.
+ *
+ * Timings are kept for the current window and the one before it, windows
+ * are rotated every {@link #WINDOW_NANOS} so the numbers show how the monitor
+ * behaves now rather than since the server started.
+ *
+ * @author Goblom
+ */
+public final class MonitorStats {
+
+    static final long WINDOW_NANOS = 60L * 1000000000L;
+
+    /**
+     * Budget in nanoseconds, 0 if the monitor has none
+     */
+    @Getter
+    private final long budget;
+
+    private final AtomicLong overruns = new AtomicLong();
+
+    private volatile Histogram current = new Histogram();
+    private volatile Histogram previous = new Histogram();
+    private volatile long windowStart = System.nanoTime();
+
+    private int strikes = 0;
+
+    @Getter
+    private volatile boolean suspended = false;
+
+    MonitorStats(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Records a single update.
+     *
+     * @return the number of updates in a row that went over budget
+     */
+    int record(long nanos) {
+        long now = System.nanoTime();
+
+        if (now - windowStart >= WINDOW_NANOS) {
+            Histogram old = previous;
+                      old.reset();
+
+            previous = current;
+            current = old;
+            windowStart = now;
+        }
+
+        current.record(nanos);
+
+        if (budget > 0 && nanos > budget) {
+            overruns.incrementAndGet();
+
+            return ++strikes;
+        }
+
+        return strikes = 0;
+    }
+
+    void suspend() {
+        this.suspended = true;
+    }
+
+    public void resume() {
+        this.strikes = 0;
+        this.suspended = false;
+    }
+
+    public void reset() {
+        current.reset();
+        previous.reset();
+        overruns.set(0);
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * @return the histogram with the most samples of the current and last
+     * window
+     */
+    private Histogram window() {
+        Histogram c = current, p = previous;
+
+        return c.getCount() >= p.getCount() ? c : p;
+    }
+
+    public long getCount() {
+        return window().getCount();
+    }
+
+    public long getMean() {
+        return window().getMean();
+    }
+
+    public long getPercentile(double percentile) {
+        return window().getPercentile(percentile);
+    }
+
+    public long getMax() {
+        return Math.max(current.getMax(), previous.getMax());
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+}
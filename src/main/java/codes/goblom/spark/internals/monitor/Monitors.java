@@ -11,11 +11,17 @@ import codes.goblom.spark.SparkInstance;
 import codes.goblom.spark.internals.Spark;
 import codes.goblom.spark.internals.commands.SparkCommand;
 import codes.goblom.spark.internals.commands.defaults.MonitorCommand;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
@@ -24,8 +30,8 @@ import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.function.Consumer;
 import lombok.NonNull;
-import org.bukkit.Bukkit;
 import org.bukkit.event.Listener;
+import org.bukkit.plugin.java.JavaPlugin;
 import org.reflections.Reflections;
 
 /**
@@ -38,8 +44,6 @@ public class Monitors /*implements Iterable<Monitor>*/ {
         SparkCommand.registerCommand(new MonitorCommand());
     }
     
-    private static final Reflections reflections = new Reflections("codes.goblom.core.internals.monitors.types");
-
     private static final Map<Class<? extends Monitor>, LoadPolicy> POLICIES = Maps.newConcurrentMap();
     private static final Set<Class<? extends Monitor>> MONITOR_CLASSES = Sets.newHashSet();
     private static final Map<Class<? extends Monitor>, Monitor> MONITORS = Maps.newConcurrentMap();
@@ -124,36 +128,7 @@ public class Monitors /*implements Iterable<Monitor>*/ {
                 }
             }
 
-            // Start the running task.
-            long tickInterval = 0L;
-            long tickDelay = 0L;
-            boolean async = clazz.isAnnotationPresent(Monitor.Async.class);
-
-            for (Field f : clazz.getDeclaredFields()) {
-                if (Modifier.isStatic(f.getModifiers())) {
-                    if (f.getType() == long.class || f.getType() == Long.class/* || f.getType() == int.class || f.getType() == Integer.class*/) {
-                        f.setAccessible(true);
-
-                        if (f.isAnnotationPresent(Monitor.TickInterval.class)) {
-                            tickInterval = (Long) f.get(null);
-                        }
-
-                        if (f.isAnnotationPresent(Monitor.TickDelay.class)) {
-                            tickDelay = (Long) f.get(null);
-                        }
-                    } else {
-                        Log.find(m.getOwningPlugin()).debug("Found static field[%s] with type of [%s] for Monitor [%s]", f.getName(), f.getType().getSimpleName(), m.getName());
-                    }
-                }
-            }
-
-            final Runnable r = () -> { m.update(); };
-
-            if (async) {
-                m.runner = Bukkit.getScheduler().runTaskTimerAsynchronously(m.getOwningPlugin(), r, tickDelay, tickInterval);
-            } else {
-                m.runner = Bukkit.getScheduler().runTaskTimer(m.getOwningPlugin(), r, tickDelay, tickInterval);
-            }
+            start(m);
 
             monitor = (M) m;
 
@@ -167,6 +142,46 @@ public class Monitors /*implements Iterable<Monitor>*/ {
         return monitor;
     }
     
+    // Start the running task.
+    private static void start(Monitor m) throws IllegalAccessException {
+        Class<? extends Monitor> clazz = m.getClass();
+        long tickInterval = 0L;
+        long tickDelay = 0L;
+        long budget = 0L;
+        boolean async = clazz.isAnnotationPresent(Monitor.Async.class);
+
+        for (Field f : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers())) {
+                if (f.getType() == long.class || f.getType() == Long.class/* || f.getType() == int.class || f.getType() == Integer.class*/) {
+                    f.setAccessible(true);
+
+                    if (f.isAnnotationPresent(Monitor.TickInterval.class)) {
+                        tickInterval = (Long) f.get(null);
+                    }
+
+                    if (f.isAnnotationPresent(Monitor.TickDelay.class)) {
+                        tickDelay = (Long) f.get(null);
+                    }
+
+                    if (f.isAnnotationPresent(Monitor.Budget.class)) {
+                        budget = (Long) f.get(null);
+                    }
+                } else {
+                    Log.find(m.getOwningPlugin()).debug("Found static field[%s] with type of [%s] for Monitor [%s]", f.getName(), f.getType().getSimpleName(), m.getName());
+                }
+            }
+        }
+
+        m.runner = MonitorDriver.schedule(m, tickDelay, tickInterval, budget, async);
+    }
+    
+    /**
+     * @return the loaded monitor, or null if it has not been loaded
+     */
+    public static <M extends Monitor> M getLoaded(Class<M> clazz) {
+        return (M) MONITORS.get(clazz);
+    }
+    
     public static <M extends Monitor> M load(Class<M> clazz) {
         M monitor = null;
         if (MONITORS.containsKey(clazz)) {
@@ -194,36 +209,7 @@ public class Monitors /*implements Iterable<Monitor>*/ {
                     }
                 }
                 
-                // Start the running task.
-                long tickInterval = 0L;
-                long tickDelay = 0L;
-                boolean async = clazz.isAnnotationPresent(Monitor.Async.class);
-                
-                for (Field f : clazz.getDeclaredFields()) {
-                    if (Modifier.isStatic(f.getModifiers())) {
-                        if (f.getType() == long.class || f.getType() == Long.class/* || f.getType() == int.class || f.getType() == Integer.class*/) {
-                            f.setAccessible(true);
-                            
-                            if (f.isAnnotationPresent(Monitor.TickInterval.class)) {
-                                tickInterval = (Long) f.get(null);
-                            }
-                            
-                            if (f.isAnnotationPresent(Monitor.TickDelay.class)) {
-                                tickDelay = (Long) f.get(null);
-                            }
-                        } else {
-                            Log.find(m.getOwningPlugin()).debug("Found static field[%s] with type of [%s] for Monitor [%s]", f.getName(), f.getType().getSimpleName(), m.getName());
-                        }
-                    }
-                }
-                
-                final Runnable r = () -> { m.update(); };
-                
-                if (async) {
-                    m.runner = Bukkit.getScheduler().runTaskTimerAsynchronously(m.getOwningPlugin(), r, tickDelay, tickInterval);
-                } else {
-                    m.runner = Bukkit.getScheduler().runTaskTimer(m.getOwningPlugin(), r, tickDelay, tickInterval);
-                }
+                start(m);
                 
                 monitor = (M) m;
                 
@@ -241,16 +227,98 @@ public class Monitors /*implements Iterable<Monitor>*/ {
         return monitor;
     }
 
-    // ??? This might cause problems cause its being called for every SparkPlugin.
+    /**
+     * Adds the monitors found in the plugins jar, then loads every monitor
+     * that has been added.
+     * 
+     * Monitors are read from the index written by {@link MonitorIndexProcessor}
+     * when the plugin was compiled. If the plugin has no index its main
+     * package is scanned instead.
+     */
+    public static void loadAll(@NonNull JavaPlugin plugin) {
+        Set<Class<? extends Monitor>> classes = readIndex(plugin);
+        
+        if (classes == null) {
+            classes = scan(plugin);
+        }
+        
+        classes.forEach((monitor) -> { addMonitor(monitor); });
+        
+        loadAll();
+    }
+    
+    /**
+     * Loads every monitor that has been added
+     */
     public static void loadAll() {
-        Set<Class<? extends Monitor>> classes = reflections.getSubTypesOf(Monitor.class);
-                                      classes.forEach((monitor) -> { addMonitor(monitor); });
-                                      classes = MONITOR_CLASSES;
-
-        for (Class<? extends Monitor> clazz : classes) {
+        for (Class<? extends Monitor> clazz : Lists.newArrayList(MONITOR_CLASSES)) {
             load(clazz);
         }
     }
+    
+    /**
+     * @return null if the plugin has no index
+     */
+    private static Set<Class<? extends Monitor>> readIndex(JavaPlugin plugin) {
+        InputStream in = plugin.getResource(MonitorIndexProcessor.INDEX);
+        
+        if (in == null) {
+            return null;
+        }
+        
+        Set<Class<? extends Monitor>> classes = Sets.newLinkedHashSet();
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                
+                try {
+                    Class<?> clazz = Class.forName(line, false, plugin.getClass().getClassLoader());
+                    
+                    if (Monitor.class.isAssignableFrom(clazz) && !clazz.isAnnotationPresent(Monitor.Manual.class)) {
+                        classes.add((Class<? extends Monitor>) clazz);
+                    }
+                } catch (ClassNotFoundException | LinkageError e) {
+                    Log.find(plugin).warning("Monitor[%s] is in the monitor index but could not be found. Error: %s", line, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Log.find(plugin).warning("Unable to read the monitor index. Error: %s", e.getMessage());
+        }
+        
+        return classes;
+    }
+    
+    private static Set<Class<? extends Monitor>> scan(JavaPlugin plugin) {
+        String main = plugin.getDescription().getMain();
+        String pkg = main.substring(0, Math.max(0, main.lastIndexOf('.')));
+        
+        Log.find(plugin).debug("No monitor index found, scanning %s for monitors", pkg);
+        
+        Set<Class<? extends Monitor>> classes = Sets.newLinkedHashSet();
+        
+        new Reflections(pkg, plugin.getClass().getClassLoader()).getSubTypesOf(Monitor.class).stream().filter((clazz) -> {
+            if (Modifier.isAbstract(clazz.getModifiers()) || clazz.isAnnotationPresent(Monitor.Manual.class)) {
+                return false;
+            }
+            
+            for (Constructor c : clazz.getDeclaredConstructors()) {
+                if (c.getParameterCount() == 0) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }).forEach(classes::add);
+        
+        return classes;
+    }
 //
 //    @Override
 //    public Iterator<Monitor> iterator() {
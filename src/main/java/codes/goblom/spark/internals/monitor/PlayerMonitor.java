@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor;
+
+import codes.goblom.spark.Log;
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * A monitor that does work for every online player, spread over several
+ * ticks.
+ *
+ * Online players are split into shards, each update handles one shard so a
+ * full pass over all players takes {@link #getShards()} updates. Players are
+ * put in the smallest shard when they join and stay in it until they quit.
+ *
+ * <pre>
+ * public class NameTagMonitor extends PlayerMonitor {
+ *     {@literal @}Monitor.TickInterval private static final long TICK_INTERVAL = 1L;
+ *
+ *     NameTagMonitor() {
+ *         super(20); // Every player once a second
+ *     }
+ *
+ *     {@literal @}Override
+ *     public void update(Player player) { ... }
+ * }
+ * </pre>
+ *
+ * @author Goblom
+ */
+public abstract class PlayerMonitor extends Monitor implements Listener {
+
+    public static final int DEFAULT_SHARDS = 20;
+
+    private final List<List<Player>> shards;
+    private int next = 0;
+
+    protected PlayerMonitor() {
+        this(DEFAULT_SHARDS);
+    }
+
+    protected PlayerMonitor(int shards) {
+        super();
+
+        this.shards = Lists.newArrayListWithCapacity(Math.max(1, shards));
+
+        for (int i = 0; i < Math.max(1, shards); i++) {
+            this.shards.add(new CopyOnWriteArrayList<>());
+        }
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            join(player);
+        }
+    }
+
+    /**
+     * Called once every {@link #getShards()} updates for every online player
+     */
+    public abstract void update(Player player);
+
+    @Override
+    public final void update() {
+        List<Player> shard = shards.get(next);
+
+        next = (next + 1) % shards.size();
+
+        for (Player player : shard) {
+            try {
+                update(player);
+            } catch (Throwable t) {
+                Log.find(getOwningPlugin()).severe("Monitor[%s] threw an error while updating %s. Error: %s", getName(), player.getName(), t.getMessage());
+                t.printStackTrace();
+            }
+        }
+    }
+
+    public final int getShards() {
+        return shards.size();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public final void onPlayerMonitorJoin(PlayerJoinEvent event) {
+        join(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public final void onPlayerMonitorQuit(PlayerQuitEvent event) {
+        for (List<Player> shard : shards) {
+            if (shard.remove(event.getPlayer())) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void join(Player player) {
+        List<Player> smallest = shards.get(0);
+
+        for (List<Player> shard : shards) {
+            if (shard.contains(player)) {
+                return;
+            }
+
+            if (shard.size() < smallest.size()) {
+                smallest = shard;
+            }
+        }
+
+        smallest.add(player);
+    }
+}
@@ -5,84 +5,280 @@
  */
 package codes.goblom.spark.internals.monitor.types;
 
-import codes.goblom.spark.SparkPlugin;
 import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.monitor.Monitor;
 import codes.goblom.spark.internals.tools.Placeholders;
 import codes.goblom.spark.internals.tools.Placeholders.AbstractPlaceholder;
 import com.google.common.collect.Maps;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
-import lombok.AllArgsConstructor;
-import lombok.NoArgsConstructor;
-import org.bukkit.Bukkit;
+import java.util.concurrent.TimeUnit;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 
 /**
+ * Named cooldowns per player, stored as the {@link System#nanoTime()} they
+ * expire at. Nothing is counted down, checking a cooldown only compares
+ * against the clock.
+ *
+ * Expired cooldowns are dropped when they are looked at and by a sweep once
+ * a minute. If {@link #mustBeOnline} is set cooldowns are paused while the
+ * player is offline.
  *
  * @author Goblom
  */
-public class CooldownMonitor extends Monitor {
-    @Monitor.TickInterval private static final long TICK_INTERVAL = 20L;
-    
-    private Map<UUID, Counter> cooldowns = Maps.newConcurrentMap();
+public class CooldownMonitor extends Monitor implements Listener {
+    @Monitor.TickInterval private static final long TICK_INTERVAL = 20L * 60L;
+
+    /**
+     * The cooldown used by the methods that do not take a key
+     */
+    public static final String DEFAULT = "default";
+
+    private final Map<UUID, Cooldowns> cooldowns = Maps.newConcurrentMap();
     public boolean mustBeOnline = false;
-    
+
     CooldownMonitor() {
         super();
-        
+
         Placeholders.register(new AbstractPlaceholder("{cooldown:remaining}", false, true) {
-            
+
             @Override
-            public Object execute(ExecutorArgs args) throws Throwable {                
+            public Object execute(ExecutorArgs args) throws Throwable {
                 return getRemaining(args.getAs(Player.class));
             }
         });
     }
-    
+
+    /**
+     * Adds to the players default cooldown
+     */
     public void add(Player player, int seconds) {
-        if (seconds <= 0) {
+        add(player.getUniqueId(), DEFAULT, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds to a cooldown, starting it if it is not running
+     */
+    public void add(UUID uuid, String key, long duration, TimeUnit unit) {
+        if (duration <= 0) {
             return;
         }
-        
-        Counter counter = new Counter(seconds);
-        
-        if (cooldowns.containsKey(player.getUniqueId())) {
-            cooldowns.get(player.getUniqueId()).add(counter);
-        } else {
-            cooldowns.put(player.getUniqueId(), counter);
+
+        final long nanos = unit.toNanos(duration);
+
+        cooldowns.compute(uuid, (id, c) -> {
+            c = c != null ? c : new Cooldowns();
+            c.add(key, nanos, System.nanoTime());
+
+            return c;
+        });
+    }
+
+    /**
+     * Starts a cooldown, replacing what was left of it
+     */
+    public void set(UUID uuid, String key, long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            clear(uuid, key);
+            return;
+        }
+
+        final long nanos = unit.toNanos(duration);
+
+        cooldowns.compute(uuid, (id, c) -> {
+            c = c != null ? c : new Cooldowns();
+            c.set(key, nanos, System.nanoTime());
+
+            return c;
+        });
+    }
+
+    public void clear(UUID uuid, String key) {
+        Cooldowns c = cooldowns.get(uuid);
+
+        if (c != null) {
+            c.remove(key);
         }
     }
-    
+
+    public void clear(UUID uuid) {
+        cooldowns.remove(uuid);
+    }
+
     public boolean has(Player player) {
-        return getRemaining(player) > 0;
+        return has(player.getUniqueId(), DEFAULT);
+    }
+
+    public boolean has(UUID uuid, String key) {
+        return getRemaining(uuid, key, TimeUnit.NANOSECONDS) > 0;
     }
-    
+
+    /**
+     * @return seconds left on the players default cooldown, rounded up
+     */
     public int getRemaining(Player player) {
-        if (cooldowns.containsKey(player.getUniqueId())) {
-            Counter c = cooldowns.get(player.getUniqueId());
-            
-            return c != null ? c.time : 0;
-        }
-        
-//        cooldowns.put(player.getUniqueId(), new Counter());
-        return 0;
+        long nanos = getRemaining(player.getUniqueId(), DEFAULT, TimeUnit.NANOSECONDS);
+
+        return (int) ((nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public long getRemaining(UUID uuid, String key, TimeUnit unit) {
+        Cooldowns c = cooldowns.get(uuid);
+
+        return c == null ? 0 : unit.convert(c.remaining(key, System.nanoTime()), TimeUnit.NANOSECONDS);
     }
-    
+
     @Override
     public void update() {
-        cooldowns.entrySet().stream().filter((entry) -> !(this.mustBeOnline && Bukkit.getPlayer(entry.getKey()) == null)).forEach((entry) -> {
-            entry.getValue().time--;
-        });
+        final long now = System.nanoTime();
+
+        // Removed through the map so a cooldown added while sweeping is not lost
+        for (UUID uuid : cooldowns.keySet()) {
+            cooldowns.computeIfPresent(uuid, (id, c) -> c.sweep(now) ? null : c);
+        }
     }
-    
-    @AllArgsConstructor
-    @NoArgsConstructor
-    private static class Counter {
-        int time = 0;
-        
-        public void add(Counter counter) {
-            this.time += counter.time;
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        Cooldowns c = cooldowns.get(event.getPlayer().getUniqueId());
+
+        if (c != null && mustBeOnline) {
+            c.pause(System.nanoTime());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        Cooldowns c = cooldowns.get(event.getPlayer().getUniqueId());
+
+        if (c != null) {
+            c.resume(System.nanoTime());
+        }
+    }
+
+    /**
+     * The cooldowns of a single player. Players rarely have more than a few
+     * so they are kept in two small arrays and searched in order.
+     *
+     * While paused {@link #times} holds what is left of each cooldown
+     * instead of when it expires.
+     */
+    private static final class Cooldowns {
+        private String[] keys = new String[2];
+        private long[] times = new long[2];
+        private int size = 0;
+        private boolean paused = false;
+
+        synchronized void add(String key, long nanos, long now) {
+            int i = indexOf(key);
+
+            if (i >= 0 && (paused || times[i] - now > 0)) {
+                times[i] += nanos;
+            } else {
+                set(key, nanos, now);
+            }
+        }
+
+        synchronized void set(String key, long nanos, long now) {
+            int i = indexOf(key);
+
+            if (i < 0) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    times = Arrays.copyOf(times, size * 2);
+                }
+
+                i = size++;
+                keys[i] = key;
+            }
+
+            times[i] = paused ? nanos : now + nanos;
+        }
+
+        synchronized long remaining(String key, long now) {
+            int i = indexOf(key);
+
+            if (i < 0) {
+                return 0;
+            }
+
+            long left = paused ? times[i] : times[i] - now;
+
+            if (left <= 0) {
+                removeAt(i);
+                return 0;
+            }
+
+            return left;
+        }
+
+        synchronized void remove(String key) {
+            int i = indexOf(key);
+
+            if (i >= 0) {
+                removeAt(i);
+            }
+        }
+
+        synchronized void pause(long now) {
+            if (paused) {
+                return;
+            }
+
+            for (int i = 0; i < size; i++) {
+                times[i] -= now;
+            }
+
+            paused = true;
+        }
+
+        synchronized void resume(long now) {
+            if (!paused) {
+                return;
+            }
+
+            for (int i = 0; i < size; i++) {
+                times[i] += now;
+            }
+
+            paused = false;
+        }
+
+        /**
+         * @return true if no cooldowns are left
+         */
+        synchronized boolean sweep(long now) {
+            for (int i = size - 1; i >= 0; i--) {
+                if ((paused ? times[i] : times[i] - now) <= 0) {
+                    removeAt(i);
+                }
+            }
+
+            return size == 0;
+        }
+
+        private int indexOf(String key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        // Order does not matter, move the last cooldown into the gap
+        private void removeAt(int i) {
+            size--;
+            keys[i] = keys[size];
+            times[i] = times[size];
+            keys[size] = null;
         }
     }
 }
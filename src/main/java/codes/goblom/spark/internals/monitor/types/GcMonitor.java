@@ -0,0 +1,315 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor.types;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.internals.ExecutorArgs;
+import codes.goblom.spark.internals.monitor.Monitor;
+import codes.goblom.spark.internals.tools.Placeholders;
+import codes.goblom.spark.internals.tools.Placeholders.AbstractPlaceholder;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Watches the garbage collector and the heap.
+ *
+ * Every tick the total time spent in GC is read so ticks that ran long can
+ * be matched with GC that happened during them. Once a second GC time and
+ * count, heap usage and allocation rate are written to ring buffers holding
+ * the last five minutes, and the last minute is published for placeholders.
+ *
+ * Allocation rate is estimated from how much the young generation grew, it
+ * is low if the young generation is collected more than once a second.
+ *
+ * If the old generation is still more than {@code gc.old-gen-alert-percent}
+ * full after being collected for {@code gc.old-gen-alert-seconds} a warning
+ * is logged, the heap is likely too small or something is leaking.
+ *
+ * @author Goblom
+ */
+public class GcMonitor extends Monitor {
+    @Monitor.TickInterval private static final long TICK_INTERVAL = 1L;
+
+    private static final int HISTORY = 5 * 60;
+    private static final int MINUTE = 60;
+    private static final long SLOW_TICK = TimeUnit.MILLISECONDS.toNanos(60);
+    private static final long MB = 1024L * 1024L;
+
+    private final double alertPercent = MainSparkConfigs.CORE.get("gc.old-gen-alert-percent", 85);
+    private final long alertAfter = TimeUnit.SECONDS.toNanos(MainSparkConfigs.CORE.get("gc.old-gen-alert-seconds", 60));
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final MemoryPoolMXBean young = pool("Eden");
+    private final MemoryPoolMXBean old = pool("Old Gen", "Tenured");
+
+    // One entry per second
+    private final long[] gcTime = new long[HISTORY];
+    private final long[] gcCount = new long[HISTORY];
+    private final long[] heapUsed = new long[HISTORY];
+    private final long[] allocated = new long[HISTORY];
+    private int head = 0;
+    private int filled = 0;
+
+    private int ticks = 0;
+    private long lastTick = 0;
+    private long lastTickGcTime = -1;
+    private long lastSampleGcTime = -1, lastSampleGcCount = -1;
+    private long lastYoungUsed = -1;
+    private long oldHighSince = 0;
+    private boolean alerted = false;
+
+    private volatile long pauseMinute = 0, countMinute = 0;
+    private volatile double allocRate = 0;
+    private volatile double heapUsedMb = 0, heapMaxMb = 0, heapPercent = 0, oldAfterGcPercent = 0;
+    private volatile long slowTicks = 0, slowTicksDuringGc = 0;
+
+    GcMonitor() {
+        super();
+
+        register("{gc:pause_ms}", () -> pauseMinute);
+        register("{gc:count}", () -> countMinute);
+        register("{gc:slow_ticks}", () -> slowTicks);
+        register("{gc:slow_ticks_gc}", () -> slowTicksDuringGc);
+        register("{heap:used}", () -> heapUsedMb);
+        register("{heap:max}", () -> heapMaxMb);
+        register("{heap:percent}", () -> heapPercent);
+        register("{heap:old_after_gc}", () -> oldAfterGcPercent);
+        register("{heap:alloc_rate}", () -> allocRate);
+    }
+
+    private void register(String key, Supplier<Object> value) {
+        Placeholders.register(new AbstractPlaceholder(key) {
+
+            @Override
+            public Object execute(ExecutorArgs args) throws Throwable {
+                return value.get();
+            }
+        });
+    }
+
+    /**
+     * @return milliseconds spent in GC over the last minute
+     */
+    public long getPauseMinute() {
+        return pauseMinute;
+    }
+
+    /**
+     * @return collections over the last minute
+     */
+    public long getCountMinute() {
+        return countMinute;
+    }
+
+    /**
+     * @return estimated MB allocated per second over the last minute
+     */
+    public double getAllocationRate() {
+        return allocRate;
+    }
+
+    public double getHeapUsed() {
+        return heapUsedMb;
+    }
+
+    public double getHeapMax() {
+        return heapMaxMb;
+    }
+
+    /**
+     * @return how full the old generation was after it was last collected,
+     * or 0 if unknown
+     */
+    public double getOldAfterGcPercent() {
+        return oldAfterGcPercent;
+    }
+
+    /**
+     * Copies the heap usage of the last five minutes, one entry per second
+     *
+     * @param into where to copy to, newest first
+     * @return the number of entries copied
+     */
+    public int getHeapHistory(long[] into) {
+        int n = Math.min(filled, into.length);
+
+        for (int i = 0; i < n; i++) {
+            into[i] = heapUsed[(head - 1 - i + HISTORY) % HISTORY];
+        }
+
+        return n;
+    }
+
+    /**
+     * @return ticks that took longer than 60ms
+     */
+    public long getSlowTicks() {
+        return slowTicks;
+    }
+
+    /**
+     * @return ticks that took longer than 60ms while the GC ran
+     */
+    public long getSlowTicksDuringGc() {
+        return slowTicksDuringGc;
+    }
+
+    @Override
+    public void update() {
+        final long now = System.nanoTime();
+        final long time = collectionTime();
+
+        if (lastTick != 0 && now - lastTick > SLOW_TICK) {
+            slowTicks++;
+
+            if (time > lastTickGcTime) {
+                slowTicksDuringGc++;
+            }
+        }
+
+        this.lastTick = now;
+        this.lastTickGcTime = time;
+
+        if (++ticks % 20 == 0) {
+            sample(now, time);
+        }
+    }
+
+    private void sample(long now, long time) {
+        long count = collectionCount();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+
+        if (lastSampleGcTime >= 0) {
+            gcTime[head] = Math.max(0, time - lastSampleGcTime);
+            gcCount[head] = Math.max(0, count - lastSampleGcCount);
+            heapUsed[head] = heap.getUsed();
+            allocated[head] = youngAllocated(count > lastSampleGcCount);
+
+            head = (head + 1) % HISTORY;
+            filled = Math.min(HISTORY, filled + 1);
+        }
+
+        this.lastSampleGcTime = time;
+        this.lastSampleGcCount = count;
+
+        publish(heap);
+        checkOld(now);
+    }
+
+    private long youngAllocated(boolean collected) {
+        if (young == null) {
+            return 0;
+        }
+
+        long used = young.getUsage().getUsed();
+        long peak = young.getPeakUsage().getUsed();
+        long last = lastYoungUsed;
+
+        young.resetPeakUsage();
+        this.lastYoungUsed = used;
+
+        if (last < 0) {
+            return 0;
+        }
+
+        // Collected since the last sample, the peak is about where it was collected at
+        return collected ? Math.max(0, peak - last) + used : Math.max(0, used - last);
+    }
+
+    private void publish(MemoryUsage heap) {
+        int n = Math.min(filled, MINUTE);
+        long time = 0, count = 0, alloc = 0;
+
+        for (int i = 1; i <= n; i++) {
+            int index = (head - i + HISTORY) % HISTORY;
+
+            time += gcTime[index];
+            count += gcCount[index];
+            alloc += allocated[index];
+        }
+
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+
+        this.pauseMinute = time;
+        this.countMinute = count;
+        this.allocRate = n == 0 ? 0 : round((double) alloc / n / MB);
+        this.heapUsedMb = round((double) heap.getUsed() / MB);
+        this.heapMaxMb = round((double) max / MB);
+        this.heapPercent = max <= 0 ? 0 : round(heap.getUsed() * 100D / max);
+
+        if (old != null && old.getCollectionUsage() != null) {
+            MemoryUsage after = old.getCollectionUsage();
+            long oldMax = after.getMax() > 0 ? after.getMax() : after.getCommitted();
+
+            this.oldAfterGcPercent = oldMax <= 0 ? 0 : round(after.getUsed() * 100D / oldMax);
+        }
+    }
+
+    private void checkOld(long now) {
+        if (oldAfterGcPercent < alertPercent) {
+            this.oldHighSince = 0;
+            this.alerted = false;
+            return;
+        }
+
+        if (oldHighSince == 0) {
+            this.oldHighSince = now;
+        } else if (!alerted && now - oldHighSince >= alertAfter) {
+            this.alerted = true;
+            Log.find(getOwningPlugin()).warning("The old generation has been %s%% full after GC for %ss (%sms in GC over the last minute). The heap may be too small or something is leaking.",
+                    oldAfterGcPercent, TimeUnit.NANOSECONDS.toSeconds(now - oldHighSince), pauseMinute);
+        }
+    }
+
+    private long collectionTime() {
+        long total = 0;
+
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+
+        return total;
+    }
+
+    private long collectionCount() {
+        long total = 0;
+
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+
+        return total;
+    }
+
+    private static MemoryPoolMXBean pool(String... names) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+
+            for (String name : names) {
+                if (pool.getName().contains(name)) {
+                    return pool;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100D;
+    }
+}
@@ -9,66 +9,310 @@ import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.monitor.Monitor;
 import codes.goblom.spark.internals.tools.Placeholders;
 import codes.goblom.spark.internals.tools.Placeholders.AbstractPlaceholder;
-import codes.goblom.spark.misc.utils.Utils;
-import com.google.common.collect.Lists;
-import java.text.DecimalFormat;
-import java.util.LinkedList;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
 
 /**
+ * Keeps TPS and MSPT over the last 5 seconds, 1, 5 and 15 minutes.
+ *
+ * Every tick the time since the previous tick and the time the server spent
+ * working on it are written to ring buffers, the running sums and 0.1ms
+ * bucket counts of each window are updated as the oldest tick falls out of
+ * it. Once a second the values are published to volatile fields so they can
+ * be read from any thread without locking. Nothing is allocated after the
+ * monitor is created.
+ *
+ * TPS is measured from the start of one tick to the start of the next. MSPT
+ * is the time the server spent inside each tick, without the wait for the
+ * next one, read from the tick times the server keeps itself. Every Bukkit
+ * task runs at the start of a tick, so it cannot be measured from a task.
+ * When the server does not keep them the MSPT placeholders are not
+ * registered and the getters return -1.
  *
  * @author Goblom
  */
 public class LagMonitor extends Monitor {
 
-    @Monitor.TickInterval private static final long TICK_INTERVAL = 50L;
-    @Monitor.TickDelay private static final long TICK_DELAY = 1000L;
-    private static final DecimalFormat format = new DecimalFormat("##.##");
-    
-    private long lastPoll = System.nanoTime();
-    private final LinkedList<Double> history = Lists.<Double>newLinkedList();
-    
+    @Monitor.TickInterval private static final long TICK_INTERVAL = 1L;
+
+    private static final int PUBLISH_EVERY = 20;
+
+    // Ticks are counted in 0.1ms buckets, anything longer than the last bucket is counted in it
+    private static final long BUCKET_NANOS = 100000L;
+    private static final int BUCKETS = 5000;
+
+    @RequiredArgsConstructor
+    public enum Window {
+        FIVE_SECONDS("5s", 5 * 20),
+        ONE_MINUTE("1m", 60 * 20),
+        FIVE_MINUTES("5m", 5 * 60 * 20),
+        FIFTEEN_MINUTES("15m", 15 * 60 * 20);
+
+        @Getter
+        private final String key;
+
+        @Getter
+        private final int ticks;
+    }
+
+    private static final Window[] WINDOWS = Window.values();
+    private static final int CAPACITY = Window.FIFTEEN_MINUTES.ticks;
+
+    private final long[] ring = new long[CAPACITY];
+    private final long[] work = new long[CAPACITY];
+    private final Series[] series = new Series[WINDOWS.length];
+
+    private final TickTimes tickTimes = TickTimes.find();
+
+    private int head = 0;
+    private long recorded = 0;
+    private long lastTick = 0;
+
     LagMonitor() {
         super();
-        
-        history.add(20.0);
-        
-        Placeholders.register(new AbstractPlaceholder("{tps}") {
+
+        for (int i = 0; i < WINDOWS.length; i++) {
+            series[i] = new Series(WINDOWS[i].ticks);
+        }
+
+        register("{tps}", (s) -> s.tps, Window.ONE_MINUTE);
+
+        for (Window window : WINDOWS) {
+            register("{tps:" + window.key + "}", (s) -> s.tps, window);
+        }
+
+        if (tickTimes == null) {
+            return;
+        }
+
+        register("{mspt}", (s) -> s.mean, Window.ONE_MINUTE);
+        register("{mspt:p95}", (s) -> s.p95, Window.ONE_MINUTE);
+        register("{mspt:p99}", (s) -> s.p99, Window.ONE_MINUTE);
+        register("{mspt:max}", (s) -> s.max, Window.ONE_MINUTE);
+
+        for (Window window : WINDOWS) {
+            register("{mspt:" + window.key + "}", (s) -> s.mean, window);
+            register("{mspt:p99:" + window.key + "}", (s) -> s.p99, window);
+        }
+    }
+
+    private void register(String key, Value value, Window window) {
+        final Series s = series[window.ordinal()];
+
+        Placeholders.register(new AbstractPlaceholder(key) {
 
             @Override
             public Object execute(ExecutorArgs args) throws Throwable {
-                return getAverage();
+                return value.get(s);
             }
         });
     }
-    
+
+    /**
+     * @return the TPS over the last minute
+     */
     public double getAverage() {
-        return Double.parseDouble(format.format(calculateAverage()));
+        return getTps(Window.ONE_MINUTE);
+    }
+
+    public double getTps(Window window) {
+        return series[window.ordinal()].tps;
+    }
+
+    /**
+     * @return false if the server does not keep its tick times, there is no
+     * MSPT
+     */
+    public boolean hasMspt() {
+        return tickTimes != null;
+    }
+
+    public double getMspt(Window window) {
+        return tickTimes == null ? -1 : series[window.ordinal()].mean;
     }
-    
-    private double calculateAverage() {
-        double avg = 0.0;
-               avg = this.history.stream().map((tps) -> tps).reduce(avg, (accumulator, _item) -> accumulator + _item);
-        
-        return avg / this.history.size();
+
+    public double getMspt95(Window window) {
+        return tickTimes == null ? -1 : series[window.ordinal()].p95;
+    }
+
+    public double getMspt99(Window window) {
+        return tickTimes == null ? -1 : series[window.ordinal()].p99;
     }
-    
+
+    public double getMsptMax(Window window) {
+        return tickTimes == null ? -1 : series[window.ordinal()].max;
+    }
+
     @Override
     public void update() {
-        final long startTime = System.nanoTime();
-        long timeSpent = (startTime - this.lastPoll) / TICK_DELAY;
-             timeSpent = timeSpent == 0L ? 1L : timeSpent;
-        
-        if (this.history.size() > 10) {
-            this.history.remove();
+        final long now = System.nanoTime();
+
+        if (lastTick != 0) {
+            record(now - lastTick, tickTimes == null ? 0 : tickTimes.previous());
+        }
+
+        this.lastTick = now;
+    }
+
+    private void record(long interval, long spent) {
+        for (Series s : series) {
+            if (recorded >= s.ticks) {
+                int oldest = (head - s.ticks + CAPACITY) % CAPACITY;
+
+                s.sum -= ring[oldest];
+                s.workSum -= work[oldest];
+                s.buckets[bucket(work[oldest])]--;
+            }
+
+            s.sum += interval;
+            s.workSum += spent;
+            s.buckets[bucket(spent)]++;
         }
-        
-        final double tps = 5.0E7 / timeSpent;
-        
-        if (tps <= 21.0) {
-            this.history.add(tps);
+
+        ring[head] = interval;
+        work[head] = spent;
+        head = (head + 1) % CAPACITY;
+        recorded++;
+
+        if (recorded % PUBLISH_EVERY == 0) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        // One walk back from the newest tick finds the max of every window
+        long max = 0;
+        int walked = 0;
+
+        for (Series s : series) {
+            int count = (int) Math.min(recorded, s.ticks);
+
+            for (; walked < count; walked++) {
+                max = Math.max(max, work[(head - 1 - walked + CAPACITY) % CAPACITY]);
+            }
+
+            if (count == 0 || s.sum <= 0) {
+                continue;
+            }
+
+            s.tps = round(Math.min(20D, count * 1000000000D / s.sum));
+            s.mean = round(millis(s.workSum / count));
+            s.p95 = round(millis(percentile(s, count, max, 95)));
+            s.p99 = round(millis(percentile(s, count, max, 99)));
+            s.max = round(millis(max));
+        }
+    }
+
+    private static long percentile(Series s, int count, long max, double percentile) {
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < s.buckets.length; i++) {
+            seen += s.buckets[i];
+
+            if (seen >= target) {
+                return Math.min(i * BUCKET_NANOS, max);
+            }
+        }
+
+        return max;
+    }
+
+    private static int bucket(long nanos) {
+        return (int) Math.min(BUCKETS - 1, Math.max(0, nanos / BUCKET_NANOS));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000D;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100D;
+    }
+
+    private interface Value {
+        double get(Series series);
+    }
+
+    @RequiredArgsConstructor
+    private static final class Series {
+        private final int ticks;
+        private final int[] buckets = new int[BUCKETS];
+
+        private long sum = 0;
+        private long workSum = 0;
+
+        private volatile double tps = 20, mean = 0, p95 = 0, p99 = 0, max = 0;
+    }
+
+    /**
+     * The tick times the server keeps for its own TPS, the time from the
+     * start of a tick to its end, in a ring of 100 indexed by the tick number
+     */
+    private static final class TickTimes {
+        private final Object server;
+        private final Field ticks;
+        private final long[] times;
+
+        private TickTimes(Object server, Field ticks, long[] times) {
+            this.server = server;
+            this.ticks = ticks;
+            this.times = times;
+        }
+
+        /**
+         * @return null if this server does not keep them where they are looked for
+         */
+        static TickTimes find() {
+            try {
+                Object server = Bukkit.getServer().getClass().getMethod("getServer").invoke(Bukkit.getServer());
+                Class<?> type = server.getClass();
+
+                // MinecraftServer, below the dedicated server class
+                while (type != null && !type.getSimpleName().equals("MinecraftServer")) {
+                    type = type.getSuperclass();
+                }
+
+                if (type == null) {
+                    return null;
+                }
+
+                Field ticks = type.getDeclaredField("ticks");
+                      ticks.setAccessible(true);
+
+                // Its name is obfuscated, it is the only final long[100]
+                for (Field field : type.getDeclaredFields()) {
+                    if (field.getType() != long[].class || !Modifier.isFinal(field.getModifiers()) || Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+
+                    field.setAccessible(true);
+
+                    long[] times = (long[]) field.get(server);
+
+                    if (times != null && times.length == 100) {
+                        return new TickTimes(server, ticks, times);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) { }
+
+            return null;
+        }
+
+        /**
+         * Called at the start of a tick, after the server counted it
+         *
+         * @return nanoseconds spent on the previous tick
+         */
+        long previous() {
+            try {
+                return times[(ticks.getInt(server) - 1 + times.length) % times.length];
+            } catch (IllegalAccessException e) {
+                return 0;
+            }
         }
-        
-        this.lastPoll = startTime;
     }
-    
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.monitor.types;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.commands.defaults.LagCommand;
+import codes.goblom.spark.internals.monitor.Monitor;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Watches the main thread for ticks that take too long.
+ *
+ * The monitor itself only stamps the start of every tick. A daemon thread
+ * checks that stamp and, once a tick has run past the threshold, samples the
+ * main thread's stack every few milliseconds until the tick ends. The samples
+ * are turned into a short report of which plugins the main thread was in.
+ *
+ * @author Goblom
+ */
+public class WatchdogMonitor extends Monitor {
+    @Monitor.TickInterval private static final long TICK_INTERVAL = 1L;
+
+    static {
+        SparkCommand.registerCommand(new LagCommand());
+    }
+
+    private static final int HISTORY = 20;
+
+    private final long threshold = TimeUnit.MILLISECONDS.toNanos(MainSparkConfigs.CORE.get("watchdog.threshold-ms", 100));
+    private final long sampleInterval = Math.max(1, MainSparkConfigs.CORE.get("watchdog.sample-interval-ms", 5));
+    private final long cooldown = TimeUnit.SECONDS.toNanos(MainSparkConfigs.CORE.get("watchdog.cooldown-seconds", 30));
+
+    private final LinkedList<Report> reports = Lists.newLinkedList();
+
+    private volatile long tickStart = 0;
+    private volatile Thread mainThread;
+    private Thread watcher;
+    private long lastReport = 0;
+
+    WatchdogMonitor() {
+        super();
+    }
+
+    @Override
+    public void update() {
+        tickStart = System.nanoTime();
+
+        if (watcher == null) {
+            mainThread = Thread.currentThread();
+            watcher = new Thread(this::watch, "Spark Watchdog");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * @return the most recent reports, newest first
+     */
+    public List<Report> getReports() {
+        synchronized (reports) {
+            return Collections.unmodifiableList(Lists.newArrayList(reports));
+        }
+    }
+
+    private void watch() {
+        while (getOwningPlugin().isEnabled()) {
+            try {
+                Thread.sleep(sampleInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long start = tickStart;
+
+            if (start == 0 || System.nanoTime() - start < threshold) {
+                continue;
+            }
+
+            if (lastReport != 0 && System.nanoTime() - lastReport < cooldown) {
+                waitForTick(start);
+                continue;
+            }
+
+            sample(start);
+        }
+    }
+
+    private void waitForTick(long start) {
+        while (tickStart == start && getOwningPlugin().isEnabled()) {
+            try {
+                Thread.sleep(sampleInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void sample(long start) {
+        Map<String, String> packages = pluginPackages();
+        Map<String, Integer> plugins = Maps.newHashMap();
+        Map<String, Integer> frames = Maps.newHashMap();
+        int samples = 0;
+
+        while (tickStart == start && getOwningPlugin().isEnabled()) {
+            StackTraceElement[] stack = mainThread.getStackTrace();
+
+            if (stack.length != 0) {
+                samples++;
+                plugins.merge(owner(stack, packages), 1, Integer::sum);
+                frames.merge(stack[0].toString(), 1, Integer::sum);
+            }
+
+            try {
+                Thread.sleep(sampleInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        if (samples == 0) {
+            return;
+        }
+
+        long duration = (tickStart != start ? tickStart : System.nanoTime()) - start;
+        Report report = new Report(System.currentTimeMillis(), TimeUnit.NANOSECONDS.toMillis(duration), samples, top(plugins, 5), top(frames, 3));
+
+        synchronized (reports) {
+            reports.addFirst(report);
+
+            if (reports.size() > HISTORY) {
+                reports.removeLast();
+            }
+        }
+
+        lastReport = System.nanoTime();
+        Log.find(getOwningPlugin()).warning("Tick took %sms. Main thread was in %s. See /spark lag", report.duration, report.plugins);
+    }
+
+    private static String owner(StackTraceElement[] stack, Map<String, String> packages) {
+        for (StackTraceElement element : stack) {
+            String className = element.getClassName();
+
+            for (Map.Entry<String, String> entry : packages.entrySet()) {
+                if (className.startsWith(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+
+        return "Server";
+    }
+
+    /**
+     * Maps the package of each plugins main class to the plugins name
+     */
+    private static Map<String, String> pluginPackages() {
+        // Longest package first so nested plugin packages win
+        Map<String, String> packages = Maps.newTreeMap((a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+
+        for (Plugin plugin : Bukkit.getPluginManager().getPlugins()) {
+            String main = plugin.getDescription().getMain();
+            int dot = main.lastIndexOf('.');
+
+            if (dot > 0) {
+                packages.put(main.substring(0, dot + 1), plugin.getName());
+            }
+        }
+
+        return packages;
+    }
+
+    private static List<String> top(Map<String, Integer> counts, int limit) {
+        int total = counts.values().stream().mapToInt(Integer::intValue).sum();
+        List<String> list = Lists.newArrayList();
+
+        counts.entrySet().stream()
+                .sorted((a, b) -> b.getValue().compareTo(a.getValue()))
+                .limit(limit)
+                .forEach((entry) -> list.add(String.format("%s %s%%", entry.getKey(), entry.getValue() * 100 / total)));
+
+        return list;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Report {
+        private final long time;
+        private final long duration;
+        private final int samples;
+        private final List<String> plugins;
+        private final List<String> frames;
+    }
+}
@@ -11,6 +11,7 @@ import codes.goblom.spark.internals.Callback;
 import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.ExecutorNoArgs;
 import codes.goblom.spark.internals.Spark;
+import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.scheduler.BukkitTask;
@@ -27,11 +28,22 @@ public abstract class AsyncTask<T> implements ExecutorNoArgs<T, Throwable> {
     protected Spark spark;
     
     public AsyncTask() {
-        this(null);
+        this((Callback<T>) null);
     }
     
     public AsyncTask(Callback<T> callback) {
-        this.spark = Spark.getMainInstance();
+        this(Spark.getMainInstance(), callback);
+    }
+    
+    /**
+     * Binds this task to the given plugin without inspecting the stack
+     */
+    public AsyncTask(@NonNull Spark spark) {
+        this(spark, null);
+    }
+    
+    public AsyncTask(@NonNull Spark spark, Callback<T> callback) {
+        this.spark = spark;
         this.callback = callback;
         this.caller = new Caller<>(this);
     }
@@ -60,23 +72,52 @@ public abstract class AsyncTask<T> implements ExecutorNoArgs<T, Throwable> {
     }
     
     public final BukkitTask run() {
+        caller.submitted = System.nanoTime();
         this.task = Bukkit.getScheduler().runTaskAsynchronously(spark, caller);
         return task;
     }
     
     public final BukkitTask runLater(long delay) {
+        caller.submitted = 0;
         this.task = Bukkit.getScheduler().runTaskLaterAsynchronously(spark, caller, delay);
         return task;
     }
     
     public final BukkitTask runTimer(long delay, long period) {
+        caller.submitted = 0;
         this.task = Bukkit.getScheduler().runTaskTimerAsynchronously(spark, caller, delay, period);
         return task;
     }
 
+    /**
+     * Runs this task on the {@link BlockingExecutor} if it has been enabled,
+     * otherwise behaves like {@link #run()}. Use this for bodies that spend
+     * most of their time waiting on JDBC, files or the network.
+     */
+    public final void runBlocking() {
+        if (BlockingExecutor.isEnabled()) {
+            caller.submitted = System.nanoTime();
+            BlockingExecutor.get().execute(spark, caller);
+        } else {
+            run();
+        }
+    }
+    
+    /**
+     * Runs this task and returns a {@link SparkFuture} that further stages can
+     * be chained on. Reuses this tasks plugin for every stage of the chain.
+     */
+    public final SparkFuture<T> submit() {
+        caller.submitted = System.nanoTime();
+        SparkFuture<T> future = SparkFuture.supplyAsync(spark, caller::supply);
+        
+        return callback != null ? future.onFinish(callback) : future;
+    }
+
     @RequiredArgsConstructor
     private static final class Caller<T> implements Runnable {
         private final AsyncTask<T> runnable;
+        private volatile long submitted = 0;
         
         @Override
         public void run() {
@@ -84,7 +125,7 @@ public abstract class AsyncTask<T> implements ExecutorNoArgs<T, Throwable> {
             T obj = null;
 
             try {
-                obj = runnable.execute();
+                obj = call();
             } catch (Throwable t) {
                 thrown = t;
             }
@@ -97,6 +138,33 @@ public abstract class AsyncTask<T> implements ExecutorNoArgs<T, Throwable> {
                 thrown.printStackTrace();
             }
         }
+
+        /**
+         * Body of a {@link SparkFuture} from {@link AsyncTask#submit()}, the chain
+         * gets the value or error and invokes the callback itself
+         */
+        T supply() throws Throwable {
+            try {
+                return call();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                throw t;
+            }
+        }
+
+        private T call() throws Throwable {
+            TaskMetrics.Sample sample = TaskMetrics.begin(submitted);
+            boolean failed = true;
+
+            try {
+                T obj = runnable.execute();
+                failed = false;
+
+                return obj;
+            } finally {
+                TaskMetrics.end(sample, runnable.getClass(), runnable.spark.getName(), failed);
+            }
+        }
         
     }
 }
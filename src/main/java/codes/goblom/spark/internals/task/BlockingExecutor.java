@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.task;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.MainSparkConfigs;
+import com.google.common.collect.Maps;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Runs blocking work (JDBC, file I/O, HTTP) outside of the Bukkit async pool.
+ *
+ * Opt in with {@code tasks.blocking-executor: true} in the core config. When
+ * the JVM supports virtual threads ({@code tasks.virtual-threads}, Java 21+)
+ * every task gets its own virtual thread, otherwise a shared pool of daemon
+ * threads is used. Either way each plugin may only have
+ * {@code tasks.blocking-concurrency} tasks running at once; the rest wait in a
+ * per plugin queue without holding a thread.
+ *
+ * @author Goblom
+ */
+public final class BlockingExecutor {
+
+    private static volatile BlockingExecutor instance;
+
+    public static BlockingExecutor get() {
+        if (instance == null) {
+            synchronized (BlockingExecutor.class) {
+                if (instance == null) {
+                    instance = new BlockingExecutor();
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return true if blocking tasks should be sent here instead of to the
+     * Bukkit scheduler
+     */
+    public static boolean isEnabled() {
+        return MainSparkConfigs.CORE.get("tasks.blocking-executor", false);
+    }
+
+    private final ExecutorService backend;
+    private final Map<String, Limiter> limiters = Maps.newConcurrentMap();
+
+    @Getter
+    private final boolean virtual;
+
+    @Getter
+    private final int concurrency;
+
+    private BlockingExecutor() {
+        ExecutorService service = null;
+
+        if (MainSparkConfigs.CORE.get("tasks.virtual-threads", true)) {
+            service = newVirtualThreadExecutor();
+        }
+
+        this.virtual = service != null;
+        this.backend = service != null ? service : Executors.newCachedThreadPool(new ThreadFactoryImpl());
+        this.concurrency = Math.max(1, MainSparkConfigs.CORE.get("tasks.blocking-concurrency", 64));
+    }
+
+    public void execute(@NonNull Plugin plugin, @NonNull Runnable runnable) {
+        Limiter limiter = limiters.get(plugin.getName());
+
+        if (limiter == null) {
+            limiters.putIfAbsent(plugin.getName(), new Limiter(plugin.getName()));
+            limiter = limiters.get(plugin.getName());
+        }
+
+        limiter.queue.offer(runnable);
+        limiter.dispatch();
+    }
+
+    public int getRunning(@NonNull Plugin plugin) {
+        Limiter limiter = limiters.get(plugin.getName());
+
+        return limiter != null ? limiter.running.get() : 0;
+    }
+
+    public int getQueued(@NonNull Plugin plugin) {
+        Limiter limiter = limiters.get(plugin.getName());
+
+        return limiter != null ? limiter.queue.size() : 0;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            Log.getMain().debug("Virtual threads are not available, blocking tasks will use a thread pool");
+        } catch (Exception e) {
+            Log.getMain().warning("Unable to create virtual thread executor. Error: %s", e.getMessage());
+        }
+
+        return null;
+    }
+
+    @RequiredArgsConstructor
+    private final class Limiter {
+        private final String name;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        void dispatch() {
+            while (!queue.isEmpty()) {
+                int current = running.get();
+
+                if (current >= concurrency) {
+                    return;
+                }
+
+                if (!running.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+
+                Runnable runnable = queue.poll();
+
+                if (runnable == null) {
+                    running.decrementAndGet();
+                    continue;
+                }
+
+                try {
+                    backend.execute(() -> {
+                        try {
+                            runnable.run();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        } finally {
+                            running.decrementAndGet();
+                            dispatch();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    running.decrementAndGet();
+                    Log.getMain().severe("Blocking task for %s was rejected. Error: %s", name, e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class ThreadFactoryImpl implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Spark Blocking Thread #" + count.incrementAndGet());
+                   thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.task;
+
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.SparkInstance;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Runs small pieces of main thread work under a per tick time budget.
+ *
+ * Any thread may submit work. All submissions made before the next tick are
+ * drained by a single scheduler task, highest priority first and round robin
+ * between plugins within a priority. Whatever does not fit in the budget is
+ * carried over to the next tick.
+ *
+ * Work left for a plugin that is disabled or reloaded before it runs is
+ * dropped, a {@link Droppable} is told so it can fail whatever waits on it.
+ *
+ * @author Goblom
+ */
+public final class MainThreadExecutor {
+
+    public static enum Priority {
+        HIGH, NORMAL, LOW;
+    }
+
+    /**
+     * A runnable that is told when it will never run because its plugin was
+     * disabled or reloaded first
+     */
+    public static interface Droppable extends Runnable {
+
+        void dropped();
+    }
+
+    private static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+    public static MainThreadExecutor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * An {@link Executor} that queues onto the main thread on behalf of the
+     * given plugin
+     */
+    public static Executor of(@NonNull Plugin plugin) {
+        return of(plugin, Priority.NORMAL);
+    }
+
+    public static Executor of(@NonNull Plugin plugin, @NonNull Priority priority) {
+        return (runnable) -> INSTANCE.submit(plugin, priority, runnable);
+    }
+
+    private final Map<String, Lane> lanes = Maps.newConcurrentMap();
+    private final List<Lane> order = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile long budgetNanos = -1;
+    private int cursor = 0;
+
+    @Getter
+    private volatile long lastDrainNanos = 0;
+
+    @Getter
+    private volatile int lastDrainCount = 0;
+
+    private MainThreadExecutor() { }
+
+    public void submit(@NonNull Plugin plugin, @NonNull Runnable runnable) {
+        submit(lane(plugin), Priority.NORMAL, runnable);
+    }
+
+    public void submit(@NonNull Plugin plugin, @NonNull Priority priority, @NonNull Runnable runnable) {
+        submit(lane(plugin), priority, runnable);
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getBudget(TimeUnit unit) {
+        return unit.convert(budgetNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public void setBudget(long budget, TimeUnit unit) {
+        this.budgetNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), unit.toNanos(budget));
+    }
+
+    private Lane lane(Plugin plugin) {
+        Lane lane = lanes.get(plugin.getName());
+
+        if (lane == null || lane.plugin != plugin) {
+            List<Runnable> dropped = null;
+
+            synchronized (lanes) {
+                lane = lanes.get(plugin.getName());
+
+                if (lane == null || lane.plugin != plugin) {
+                    Lane replacement = new Lane(plugin);
+
+                    if (lane != null) {
+                        // The plugin was reloaded, anything left for the old instance is dropped
+                        lane.retired = true;
+                        order.set(order.indexOf(lane), replacement);
+                        dropped = lane.clear();
+                        pending.addAndGet(-dropped.size());
+                    } else {
+                        order.add(replacement);
+                    }
+
+                    lanes.put(plugin.getName(), lane = replacement);
+                }
+            }
+
+            if (dropped != null) {
+                dropped.forEach(MainThreadExecutor::drop);
+            }
+        }
+
+        return lane;
+    }
+
+    private void submit(Lane lane, Priority priority, Runnable runnable) {
+        Queue<Runnable> queue = lane.queues.get(priority.ordinal());
+
+        queue.offer(runnable);
+        pending.incrementAndGet();
+
+        // Replaced while offering, so it may have been offered after the lane was cleared
+        if (lane.retired && queue.remove(runnable)) {
+            pending.decrementAndGet();
+            drop(runnable);
+            return;
+        }
+
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                Bukkit.getScheduler().runTask(JavaPlugin.getPlugin(SparkInstance.class), this::drain);
+            } catch (RuntimeException | Error e) {
+                scheduled.set(false); // Tried again on the next submit
+                throw e;
+            }
+        }
+    }
+
+    private static void drop(Runnable runnable) {
+        if (runnable instanceof Droppable) {
+            try {
+                ((Droppable) runnable).dropped();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private long budgetNanos() {
+        if (budgetNanos < 0) {
+            int millis = MainSparkConfigs.CORE.get("tasks.main-thread-budget-ms", 5);
+
+            setBudget(millis, TimeUnit.MILLISECONDS);
+        }
+
+        return budgetNanos;
+    }
+
+    private void drain() {
+        final long start = System.nanoTime();
+        final long deadline = start + budgetNanos();
+        int ran = 0;
+
+        try {
+            for (Priority priority : Priority.values()) {
+                ran += drain(priority.ordinal(), deadline);
+
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+        } finally {
+            lastDrainNanos = System.nanoTime() - start;
+            lastDrainCount = ran;
+
+            scheduled.set(false);
+
+            if (pending.get() > 0) {
+                schedule();
+            }
+        }
+    }
+
+    private int drain(int priority, long deadline) {
+        int ran = 0;
+        int size = order.size();
+        int idle = 0;
+
+        // Take one runnable from each lane in turn so one plugin cannot starve the rest
+        while (idle < size && System.nanoTime() - deadline < 0) {
+            Lane lane = order.get(cursor = (cursor + 1) % size);
+            Runnable runnable = lane.queues.get(priority).poll();
+
+            if (runnable == null) {
+                idle++;
+                continue;
+            }
+
+            idle = 0;
+            pending.decrementAndGet();
+
+            if (!lane.plugin.isEnabled()) {
+                drop(runnable);
+                continue;
+            }
+
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+
+            ran++;
+        }
+
+        return ran;
+    }
+
+    @RequiredArgsConstructor
+    private static final class Lane {
+        private final Plugin plugin;
+        private final List<Queue<Runnable>> queues = Lists.newArrayListWithCapacity(Priority.values().length);
+        private volatile boolean retired = false;
+
+        {
+            for (Priority priority : Priority.values()) {
+                queues.add(new ConcurrentLinkedQueue<>());
+            }
+        }
+
+        List<Runnable> clear() {
+            List<Runnable> cleared = Lists.newArrayList();
+            Runnable runnable;
+
+            for (Queue<Runnable> queue : queues) {
+                while ((runnable = queue.poll()) != null) {
+                    cleared.add(runnable);
+                }
+            }
+
+            return cleared;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.task;
+
+import codes.goblom.spark.internals.Callback;
+import codes.goblom.spark.internals.ExecutorNoArgs;
+import codes.goblom.spark.internals.Spark;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * A composable alternative to nesting {@link AsyncTask} and {@link SyncTask}
+ * inside each others callbacks.
+ *
+ * The owning plugin is resolved once when the chain is created and shared by
+ * every stage. The body given to a {@code supply} method is always handed to
+ * a task, so the future is returned before it starts. A later stage that is
+ * already on the thread it asks for runs inline instead of scheduling another
+ * task, and hops onto the main thread go through the
+ * {@link MainThreadExecutor} so they share one scheduler task.
+ *
+ * <pre>
+ * SparkFuture.supplyAsync(() -&gt; loadFromDatabase(uuid))
+ *            .thenSync((data) -&gt; { apply(player, data); return data; })
+ *            .onFinish((data, error) -&gt; { ... });
+ * </pre>
+ *
+ * @author Goblom
+ */
+public final class SparkFuture<T> {
+
+    @Getter
+    private final Spark spark;
+    private final CompletableFuture<T> future;
+    private final SparkFuture<?> parent;
+
+    private volatile BukkitTask pending;
+
+    private SparkFuture(Spark spark, CompletableFuture<T> future, SparkFuture<?> parent) {
+        this.spark = spark;
+        this.future = future;
+        this.parent = parent;
+    }
+
+    // *****************************
+    // Creation
+    // *****************************
+
+    public static <T> SparkFuture<T> supplyAsync(ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supplyAsync(Spark.getMainInstance(), body);
+    }
+
+    public static <T> SparkFuture<T> supplyAsync(@NonNull Spark spark, ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supply(spark, body, dispatchAsync(spark));
+    }
+
+    public static <T> SparkFuture<T> supplySync(ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supplySync(Spark.getMainInstance(), body);
+    }
+
+    public static <T> SparkFuture<T> supplySync(@NonNull Spark spark, ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supply(spark, body, dispatchSync(spark));
+    }
+
+    /**
+     * Like {@link #supplyAsync(Spark, ExecutorNoArgs)}, but runs on the
+     * {@link BlockingExecutor} when it has been enabled. Use this for bodies
+     * that spend most of their time waiting on JDBC, files or the network.
+     */
+    public static <T> SparkFuture<T> supplyBlocking(@NonNull Spark spark, ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supply(spark, body, blocking(spark));
+    }
+
+    public static <T> SparkFuture<T> supplyOn(@NonNull Spark spark, @NonNull Executor executor, ExecutorNoArgs<T, ? extends Throwable> body) {
+        return supply(spark, body, executor);
+    }
+
+    public static <T> SparkFuture<T> completed(@NonNull Spark spark, T value) {
+        return new SparkFuture<>(spark, CompletableFuture.completedFuture(value), null);
+    }
+
+    public static <T> SparkFuture<T> failed(@NonNull Spark spark, @NonNull Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+                             future.completeExceptionally(error);
+
+        return new SparkFuture<>(spark, future, null);
+    }
+
+    private static <T> SparkFuture<T> supply(Spark spark, ExecutorNoArgs<T, ? extends Throwable> body, Executor executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        executor.execute(new MainThreadExecutor.Droppable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+
+                try {
+                    future.complete(body.execute());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+
+            @Override
+            public void dropped() {
+                future.completeExceptionally(disabled(spark));
+            }
+        });
+
+        return new SparkFuture<>(spark, future, null);
+    }
+
+    // *****************************
+    // Composition
+    // *****************************
+
+    /**
+     * Runs the stage on the main server thread
+     */
+    public <R> SparkFuture<R> thenSync(Stage<? super T, ? extends R> stage) {
+        MainThreadStage sync = sync(spark);
+
+        return next(sync.bind(future.thenApplyAsync(wrap(stage), sync)));
+    }
+
+    /**
+     * Runs the stage off of the main server thread
+     */
+    public <R> SparkFuture<R> thenAsync(Stage<? super T, ? extends R> stage) {
+        return next(future.thenApplyAsync(wrap(stage), async(spark)));
+    }
+
+    /**
+     * Runs the stage on the main server thread and continues with the future
+     * it returns
+     */
+    public <R> SparkFuture<R> thenComposeSync(Stage<? super T, SparkFuture<R>> stage) {
+        MainThreadStage sync = sync(spark);
+
+        return next(sync.bind(future.thenComposeAsync((value) -> wrap(stage).apply(value).future, sync)));
+    }
+
+    /**
+     * Runs the stage off of the main server thread and continues with the
+     * future it returns
+     */
+    public <R> SparkFuture<R> thenComposeAsync(Stage<? super T, SparkFuture<R>> stage) {
+        return next(future.thenComposeAsync((value) -> wrap(stage).apply(value).future, async(spark)));
+    }
+
+    /**
+     * Completes with the same value {@code ticks} server ticks after this
+     * future completes. Downstream stages continue from the main thread.
+     */
+    public SparkFuture<T> awaitTicks(long ticks) {
+        if (ticks <= 0) {
+            return this;
+        }
+
+        CompletableFuture<T> delayed = new CompletableFuture<>();
+        SparkFuture<T> next = next(delayed);
+
+        future.whenComplete((value, error) -> {
+            if (error != null) {
+                delayed.completeExceptionally(unwrap(error));
+                return;
+            }
+
+            next.pending = Bukkit.getScheduler().runTaskLater(spark, () -> {
+                next.pending = null;
+                delayed.complete(value);
+            }, ticks);
+
+            if (delayed.isCancelled()) {
+                next.pending.cancel();
+            }
+        });
+
+        return next;
+    }
+
+    /**
+     * Recovers from an error anywhere earlier in the chain. Runs on whatever
+     * thread the error surfaced on.
+     */
+    public SparkFuture<T> exceptionally(Stage<Throwable, ? extends T> stage) {
+        return next(future.exceptionally((error) -> wrap(stage).apply(unwrap(error))));
+    }
+
+    /**
+     * Invokes the callback on the main server thread once the chain has
+     * finished, successfully or not.
+     */
+    public SparkFuture<T> onFinishSync(@NonNull Callback<? super T> callback) {
+        MainThreadStage sync = sync(spark);
+
+        return next(sync.bind(future.whenCompleteAsync((value, error) -> callback.onFinish(value, unwrap(error)), sync)));
+    }
+
+    /**
+     * Invokes the callback on whatever thread completed the chain.
+     */
+    public SparkFuture<T> onFinish(@NonNull Callback<? super T> callback) {
+        return next(future.whenComplete((value, error) -> callback.onFinish(value, unwrap(error))));
+    }
+
+    /**
+     * Invokes the callback on the given executor once the chain has
+     * finished, successfully or not.
+     */
+    public SparkFuture<T> onFinish(@NonNull Executor executor, @NonNull Callback<? super T> callback) {
+        return next(future.whenCompleteAsync((value, error) -> callback.onFinish(value, unwrap(error)), executor));
+    }
+
+    // *****************************
+    // State
+    // *****************************
+
+    /**
+     * Cancels this stage if it has not yet run. Stages before it keep
+     * running, they may be shared with other chains.
+     */
+    public boolean cancel() {
+        BukkitTask task = pending;
+
+        if (task != null) {
+            task.cancel();
+        }
+
+        return future.cancel(false);
+    }
+
+    /**
+     * Cancels this stage and every stage before it that has not yet run.
+     * Only use this when nothing else has been chained on those stages, any
+     * other chain continuing from them is failed as well.
+     */
+    public boolean cancelUpstream() {
+        boolean cancelled = cancel();
+
+        if (parent != null) {
+            parent.cancelUpstream();
+        }
+
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    public boolean isCompletedExceptionally() {
+        return future.isCompletedExceptionally();
+    }
+
+    /**
+     * Blocks until the chain has finished. Never call this from the main
+     * thread while waiting on a sync stage.
+     */
+    public T join(long timeout, TimeUnit unit) throws Throwable {
+        try {
+            return future.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Returns the value if the chain already finished successfully
+     */
+    public T getNow(T fallback) {
+        if (!future.isDone() || future.isCompletedExceptionally()) {
+            return fallback;
+        }
+
+        return future.join();
+    }
+
+    public CompletableFuture<T> toCompletableFuture() {
+        return future;
+    }
+
+    private <R> SparkFuture<R> next(CompletableFuture<R> next) {
+        return new SparkFuture<>(spark, next, this);
+    }
+
+    // *****************************
+    // Executors
+    // *****************************
+
+    static MainThreadStage sync(Spark spark) {
+        return new MainThreadStage(spark);
+    }
+
+    static Executor async(Spark spark) {
+        return (runnable) -> {
+            if (Bukkit.isPrimaryThread()) {
+                Bukkit.getScheduler().runTaskAsynchronously(spark, runnable);
+            } else {
+                runnable.run();
+            }
+        };
+    }
+
+    static Executor blocking(Spark spark) {
+        return (runnable) -> {
+            if (BlockingExecutor.isEnabled()) {
+                BlockingExecutor.get().execute(spark, runnable);
+            } else {
+                dispatchAsync(spark).execute(runnable);
+            }
+        };
+    }
+
+    // Never inline, for bodies given to supply so the caller gets the future first
+
+    static Executor dispatchSync(Spark spark) {
+        return (runnable) -> MainThreadExecutor.get().submit(spark, runnable);
+    }
+
+    static Executor dispatchAsync(Spark spark) {
+        return (runnable) -> Bukkit.getScheduler().runTaskAsynchronously(spark, runnable);
+    }
+
+    private static <A, B> Function<A, B> wrap(Stage<? super A, ? extends B> stage) {
+        return (value) -> {
+            try {
+                return stage.apply(value);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new CompletionException(t);
+            }
+        };
+    }
+
+    private static Throwable disabled(Spark spark) {
+        return new IllegalPluginAccessException("Plugin " + spark.getName() + " was disabled before its task could run");
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        return error;
+    }
+
+    /**
+     * Runs a stage on the main thread, and fails the stage it is bound to if
+     * the plugin is disabled before the stage gets to run
+     */
+    @RequiredArgsConstructor
+    static final class MainThreadStage implements Executor {
+        private final Spark spark;
+        private CompletableFuture<?> stage;
+        private boolean dropped = false;
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (Bukkit.isPrimaryThread()) {
+                runnable.run();
+                return;
+            }
+
+            MainThreadExecutor.get().submit(spark, new MainThreadExecutor.Droppable() {
+                @Override
+                public void run() {
+                    runnable.run();
+                }
+
+                @Override
+                public void dropped() {
+                    drop();
+                }
+            });
+        }
+
+        <R> CompletableFuture<R> bind(CompletableFuture<R> stage) {
+            boolean fail;
+
+            // May already have been dropped, the stage is only known once it has been chained
+            synchronized (this) {
+                this.stage = stage;
+                fail = dropped;
+            }
+
+            if (fail) {
+                stage.completeExceptionally(disabled(spark));
+            }
+
+            return stage;
+        }
+
+        private void drop() {
+            CompletableFuture<?> bound;
+
+            synchronized (this) {
+                dropped = true;
+                bound = stage;
+            }
+
+            if (bound != null) {
+                bound.completeExceptionally(disabled(spark));
+            }
+        }
+    }
+
+    public static interface Stage<T, R> {
+
+        R apply(T value) throws Throwable;
+    }
+}
@@ -28,11 +28,22 @@ public abstract class SyncTask<T> implements ExecutorNoArgs<T, Throwable> {
     protected Spark spark;
     
     public SyncTask() {
-        this(null);
+        this((Callback<T>) null);
     }
     
     public SyncTask(Callback<T> callback) {
-        this.spark = Spark.getMainInstance();
+        this(Spark.getMainInstance(), callback);
+    }
+    
+    /**
+     * Binds this task to the given plugin without inspecting the stack
+     */
+    public SyncTask(@NonNull Spark spark) {
+        this(spark, null);
+    }
+    
+    public SyncTask(@NonNull Spark spark, Callback<T> callback) {
+        this.spark = spark;
         this.callback = callback;
         this.caller = new Caller<>(this);
     }
@@ -61,23 +72,52 @@ public abstract class SyncTask<T> implements ExecutorNoArgs<T, Throwable> {
     }
     
     public final BukkitTask run() {
+        caller.submitted = System.nanoTime();
         this.task = Bukkit.getScheduler().runTask(spark, caller);
         return task;
     }
     
     public final BukkitTask runLater(long delay) {
+        caller.submitted = 0;
         this.task = Bukkit.getScheduler().runTaskLater(spark, caller, delay);
         return task;
     }
     
     public final BukkitTask runTimer(long delay, long period) {
+        caller.submitted = 0;
         this.task = Bukkit.getScheduler().runTaskTimer(spark, caller, delay, period);
         return task;
     }
 
+    /**
+     * Queues this task onto the shared {@link MainThreadExecutor} instead of
+     * scheduling a task of its own. It will run within the next few ticks
+     * depending on how much other work is waiting.
+     */
+    public final void queue() {
+        queue(MainThreadExecutor.Priority.NORMAL);
+    }
+    
+    public final void queue(@NonNull MainThreadExecutor.Priority priority) {
+        caller.submitted = System.nanoTime();
+        MainThreadExecutor.get().submit(spark, priority, caller);
+    }
+    
+    /**
+     * Runs this task and returns a {@link SparkFuture} that further stages can
+     * be chained on. Reuses this tasks plugin for every stage of the chain.
+     */
+    public final SparkFuture<T> submit() {
+        caller.submitted = System.nanoTime();
+        SparkFuture<T> future = SparkFuture.supplySync(spark, caller::supply);
+        
+        return callback != null ? future.onFinish(callback) : future;
+    }
+
     @RequiredArgsConstructor
     private static final class Caller<T> implements Runnable {
         private final SyncTask<T> runnable;
+        private volatile long submitted = 0;
         
         @Override
         public void run() {
@@ -85,7 +125,7 @@ public abstract class SyncTask<T> implements ExecutorNoArgs<T, Throwable> {
             T obj = null;
 
             try {
-                obj = runnable.execute();
+                obj = call();
             } catch (Throwable t) {
                 thrown = t;
             }
@@ -98,6 +138,33 @@ public abstract class SyncTask<T> implements ExecutorNoArgs<T, Throwable> {
                 thrown.printStackTrace();
             }
         }
+
+        /**
+         * Body of a {@link SparkFuture} from {@link SyncTask#submit()}, the chain
+         * gets the value or error and invokes the callback itself
+         */
+        T supply() throws Throwable {
+            try {
+                return call();
+            } catch (Throwable t) {
+                t.printStackTrace();
+                throw t;
+            }
+        }
+
+        private T call() throws Throwable {
+            TaskMetrics.Sample sample = TaskMetrics.begin(submitted);
+            boolean failed = true;
+
+            try {
+                T obj = runnable.execute();
+                failed = false;
+
+                return obj;
+            } finally {
+                TaskMetrics.end(sample, runnable.getClass(), runnable.spark.getName(), failed);
+            }
+        }
         
     }
 }
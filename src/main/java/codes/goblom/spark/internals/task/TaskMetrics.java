@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.internals.task;
+
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.commands.defaults.TasksCommand;
+import codes.goblom.spark.internals.tools.Histogram;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Opt in timing of task and command bodies. Turn it on with
+ * {@code tasks.metrics: true} in the core config or {@code /spark tasks on}.
+ *
+ * Stats are kept per task class: how often it ran, how long it ran for, how
+ * long it waited between being submitted and starting, and how much it
+ * allocated while running.
+ *
+ * @author Goblom
+ */
+public final class TaskMetrics {
+
+    static {
+        SparkCommand.registerCommand(new TasksCommand());
+    }
+
+    private static final Map<Class<?>, Stats> STATS = Maps.newConcurrentMap();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION = allocationSupported();
+
+    private static volatile Boolean enabled = null;
+
+    private TaskMetrics() { }
+
+    public static boolean isEnabled() {
+        Boolean b = enabled;
+
+        if (b == null) {
+            enabled = b = MainSparkConfigs.CORE.get("tasks.metrics", false);
+        }
+
+        return b;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TaskMetrics.enabled = enabled;
+    }
+
+    public static void reset() {
+        STATS.clear();
+    }
+
+    public static List<Stats> getStats() {
+        List<Stats> list = Lists.newArrayList(STATS.values());
+                    list.sort((a, b) -> Long.compare(b.runtime.getTotal(), a.runtime.getTotal()));
+
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Starts timing a task body.
+     *
+     * @param submitted {@link System#nanoTime()} at which the task was handed
+     * to a scheduler, or 0 if unknown
+     * @return null if metrics are disabled
+     */
+    public static Sample begin(long submitted) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        return new Sample(submitted, System.nanoTime(), allocatedBytes());
+    }
+
+    /**
+     * Finishes timing a task body started with {@link #begin(long)}
+     */
+    public static void end(Sample sample, Class<?> type, String owner, boolean failed) {
+        if (sample == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Stats stats = STATS.get(type);
+
+        if (stats == null) {
+            STATS.putIfAbsent(type, new Stats(type, owner));
+            stats = STATS.get(type);
+        }
+
+        stats.runtime.record(now - sample.started);
+
+        if (sample.submitted != 0) {
+            stats.wait.record(sample.started - sample.submitted);
+        }
+
+        if (sample.allocated >= 0) {
+            long allocated = allocatedBytes();
+
+            if (allocated >= 0) {
+                stats.allocated.addAndGet(allocated - sample.allocated);
+            }
+        }
+
+        if (failed) {
+            stats.failures.incrementAndGet();
+        }
+    }
+
+    private static boolean allocationSupported() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+
+                    return true;
+                }
+            }
+        } catch (Throwable t) { } // Not a HotSpot JVM
+
+        return false;
+    }
+
+    private static long allocatedBytes() {
+        if (!ALLOCATION) {
+            return -1;
+        }
+
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @RequiredArgsConstructor
+    public static final class Sample {
+        private final long submitted, started, allocated;
+    }
+
+    @RequiredArgsConstructor
+    public static final class Stats {
+        @Getter
+        private final Class<?> type;
+
+        @Getter
+        private final String owner;
+
+        @Getter
+        private final Histogram runtime = new Histogram();
+
+        @Getter
+        private final Histogram wait = new Histogram();
+
+        private final AtomicLong allocated = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        public String getName() {
+            String name = type.getName();
+
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return average bytes allocated per run, or -1 if the JVM cannot
+         * tell
+         */
+        public long getAllocatedPerRun() {
+            if (!ALLOCATION) {
+                return -1;
+            }
+
+            long count = runtime.getCount();
+
+            return count == 0 ? 0 : allocated.get() / count;
+        }
+    }
+}
@@ -5,22 +5,36 @@
  */
 package codes.goblom.spark.internals.task;
 
+import codes.goblom.spark.SparkPlugin;
 import codes.goblom.spark.internals.Callback;
 import codes.goblom.spark.internals.ExecutorArgs;
 import codes.goblom.spark.internals.ExecutorNoArgs;
+import codes.goblom.spark.internals.Spark;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 
 /**
- *
+ * Runs on a thread of its own, or on the {@link BlockingExecutor} when that
+ * has been enabled in the core config.
+ * 
  * @author Goblom
  */
 public abstract class ThreadTask<T> implements ExecutorNoArgs<T, Throwable> {
     
     private Callback<T> callback = null;
+    private final Caller<T> caller;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean started = false;
+    private Spark spark;
     
+    /**
+     * The thread running this task. Null until the task has started.
+     */
     @Getter
-    private Thread thread;
+    private volatile Thread thread;
             
     public ThreadTask() {
         this(null);
@@ -28,7 +42,13 @@ public abstract class ThreadTask<T> implements ExecutorNoArgs<T, Throwable> {
     
     public ThreadTask(Callback<T> callback) {
         this.callback = callback;
-        this.thread = new Caller<>(this);
+        this.caller = new Caller<>(this);
+    }
+    
+    public ThreadTask<T> with(@NonNull SparkPlugin plugin) {
+        this.spark = plugin;
+        
+        return this;
     }
     
     @Override
@@ -37,42 +57,102 @@ public abstract class ThreadTask<T> implements ExecutorNoArgs<T, Throwable> {
     }
     
     public void start() {
-        thread.start();
+        caller.submitted = System.nanoTime();
+        started = true;
+        
+        try {
+            if (BlockingExecutor.isEnabled()) {
+                if (spark == null) {
+                    spark = Spark.getMainInstance();
+                }
+
+                BlockingExecutor.get().execute(spark, caller);
+                return;
+            }
+
+            new Thread(caller).start();
+        } catch (RuntimeException | Error e) {
+            finished.countDown(); // It will never run, so nothing is left to wait for
+            throw e;
+        }
     }
 
     public void interrupt() {
-        thread.interrupt();
+        Thread t = thread;
+        
+        if (t != null) {
+            t.interrupt();
+        }
     }
     
+    /**
+     * Waits for this task to finish, returning at once if it was never
+     * started. Same as {@link Thread#join()}.
+     */
     public void join() throws InterruptedException {
-        thread.join();
+        if (started) {
+            finished.await();
+        }
     }
     
+    /**
+     * Waits at most millis for this task to finish, 0 waits forever. Same as
+     * {@link Thread#join(long)}.
+     */
     public void join(long millis) throws InterruptedException {
-        thread.join(millis);
+        join(millis, 0);
     }
     
+    /**
+     * Waits at most millis plus nano for this task to finish, 0 waits
+     * forever. Same as {@link Thread#join(long, int)}.
+     */
     public void join(long millis, int nano) throws InterruptedException {
-        thread.join(millis, nano);
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout value is negative");
+        }
+        
+        if (nano < 0 || nano > 999999) {
+            throw new IllegalArgumentException("nanosecond timeout value out of range");
+        }
+        
+        if (millis == 0 && nano == 0) {
+            join();
+        } else if (started) {
+            finished.await(TimeUnit.MILLISECONDS.toNanos(millis) + nano, TimeUnit.NANOSECONDS);
+        }
     }
        
     @RequiredArgsConstructor
-    private static final class Caller<T> extends Thread {
+    private static final class Caller<T> implements Runnable {
         private final ThreadTask<T> task;
+        private volatile long submitted = 0;
         
         @Override
         public void run() {
             Throwable thrown = null;
             T obj = null;
+            
+            TaskMetrics.Sample sample = TaskMetrics.begin(submitted);
+            
+            task.thread = Thread.currentThread();
 
             try {
                 obj = task.execute();
             } catch (Throwable t) {
                 thrown = t;
+            } finally {
+                task.thread = null;
             }
+            
+            try {
+                TaskMetrics.end(sample, task.getClass(), task.spark != null ? task.spark.getName() : "Thread", thrown != null);
 
-            if (task.callback != null) {
-                task.callback.onFinish(obj, thrown);
+                if (task.callback != null) {
+                    task.callback.onFinish(obj, thrown);
+                }
+            } finally {
+                task.finished.countDown();
             }
 
             if (thrown != null) {
@@ -12,13 +12,21 @@ import codes.goblom.spark.internals.Callback;
 import codes.goblom.spark.internals.ExecutorNoArgs;
 import codes.goblom.spark.internals.Spark;
 import codes.goblom.spark.internals.Validater;
-import codes.goblom.spark.internals.task.AsyncTask;
+import codes.goblom.spark.internals.task.SparkFuture;
+import codes.goblom.spark.misc.database.ConnectionPool;
+import codes.goblom.spark.misc.database.Query;
+import codes.goblom.spark.misc.database.QueryCache;
+import codes.goblom.spark.misc.database.QueryMetrics;
+import codes.goblom.spark.misc.database.SQLiteWriter;
+import codes.goblom.spark.misc.database.Schema;
+import codes.goblom.spark.misc.database.Transaction;
+import codes.goblom.spark.misc.database.WriteJournal;
 import codes.goblom.spark.misc.utils.Utils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -28,11 +36,17 @@ import java.sql.Statement;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 /**
  *
@@ -66,7 +80,7 @@ public class Database {
         });
         
         Utils.addValidaterCheck((Validater<Database>) (Database obj) -> {
-            return Utils.isValid(obj.getConnection());
+            return obj.isClosed();
         });
     }
 
@@ -96,9 +110,41 @@ public class Database {
         public String loadArgs;
     }
 
+    private static RowSetFactory rowSets;
+
     private final Type type;
 
     @Getter
+    private ConnectionPool pool;
+
+    /**
+     * Null unless {@link #enableCache(QueryCache.Settings)} has been called
+     */
+    @Getter
+    private volatile QueryCache cache;
+
+    /**
+     * Null unless the database was opened in SQLite performance mode
+     */
+    @Getter
+    private SQLiteWriter writer;
+
+    @Getter
+    private volatile WriteJournal journal;
+
+    /**
+     * Used by {@link #transaction(Transaction.Work)}, read from the
+     * {@code transaction} section by {@link #GenericConnect(SparkPlugin)}
+     */
+    @Getter
+    @Setter
+    @NonNull
+    private volatile Transaction.Settings transactionSettings = new Transaction.Settings();
+
+    private volatile Schema schema;
+
+    private final List<AutoCloseable> dependents = new CopyOnWriteArrayList<>();
+
     private Connection connection;
 
     private Database(Type type) {
@@ -120,16 +166,50 @@ public class Database {
     }
 
     public Database(File file) throws SQLException {
+        this(file, new ConnectionPool.Settings(1));
+    }
+
+    public Database(File file, ConnectionPool.Settings settings) throws SQLException {
+        this(Type.SQLite);
+
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdir();
+        }
+
+        final String loadArgs = type.loadArgs.replace("{file}", file.getAbsolutePath());
+
+        this.pool = new ConnectionPool(() -> DriverManager.getConnection(loadArgs), settings);
+    }
+
+    /**
+     * Opens an SQLite database in performance mode. It is switched to WAL so
+     * reads do not block writes, reads go through a pool of read only
+     * connections and every write is run by a single {@link SQLiteWriter}.
+     */
+    public Database(File file, SQLiteWriter.Settings settings) throws SQLException {
         this(Type.SQLite);
 
         if (file.getParentFile() != null) {
             file.getParentFile().mkdir();
         }
 
-        this.connection = DriverManager.getConnection(type.loadArgs.replace("{file}", file.getAbsolutePath()));
+        final String loadArgs = type.loadArgs.replace("{file}", file.getAbsolutePath());
+
+        // The writer first, it is what switches the database to WAL
+        this.writer = new SQLiteWriter(file.getName(), () -> SQLiteWriter.open(loadArgs, settings, false), settings);
+        try {
+            this.pool = new ConnectionPool(() -> SQLiteWriter.open(loadArgs, settings, true), new ConnectionPool.Settings(Math.max(1, settings.readers)));
+        } catch (SQLException e) {
+            writer.close();
+            throw e;
+        }
     }
 
     public Database(String host, int port, String database, String username, String password) throws SQLException {
+        this(host, port, database, username, password, new ConnectionPool.Settings());
+    }
+
+    public Database(String host, int port, String database, String username, String password, ConnectionPool.Settings settings) throws SQLException {
         this(Type.MySQL);
 
         String loadArgs = type.loadArgs;
@@ -137,7 +217,9 @@ public class Database {
         loadArgs = loadArgs.replace("{port}", String.valueOf(port));
         loadArgs = loadArgs.replace("{database}", database);
 
-        this.connection = DriverManager.getConnection(loadArgs, username, password);
+        final String url = loadArgs;
+
+        this.pool = new ConnectionPool(() -> DriverManager.getConnection(url, username, password), settings);
     }
 
     @Deprecated
@@ -147,12 +229,32 @@ public class Database {
     public Database(ExecutorNoArgs<Connection, SQLException> exe) throws SQLException {
 //        this(Type.OTHER);
         this.type = Type.OTHER;
-        
-        this.connection = exe.execute();
+        this.pool = new ConnectionPool(() -> {
+            Connection c = exe.execute();
+            
+            return c != null ? c : DriverManager.getConnection(type.loadArgs);
+        }, new ConnectionPool.Settings());
+    }
 
-        if (!Utils.isValid(this.connection)) {
-            this.connection = DriverManager.getConnection(type.loadArgs);
+    /**
+     * A connection that is not part of the pool and stays open until the
+     * database is closed. It is shared by everyone who calls this, so it
+     * should not be used from more than one thread at once.
+     * 
+     * @deprecated borrow a connection from {@link #getPool()} and close it
+     * when done instead
+     */
+    @Deprecated
+    public synchronized Connection getConnection() {
+        try {
+            if (connection == null || connection.isClosed()) {
+                connection = writer != null ? writer.openUnmanaged() : pool.openUnpooled();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
+        
+        return connection;
     }
 
     /**
@@ -160,72 +262,248 @@ public class Database {
      * task so you can perform your own queries on it without disturbing
      * anything
      */
-    public void getConnectionAsync(Callback<Connection> async) {
-        new AsyncTask<Connection>(async) {
+    public void getConnectionAsync(Callback<Connection> callback) {
+        async(() -> getConnection(), callback);
+    }
+
+    /**
+     * Starts a parameterized query on a pooled connection, values are bound
+     * to the {@code ?} in the SQL
+     */
+    public Query query(String sql) {
+        return new Query(this, sql);
+    }
+
+    /**
+     * Lets queries marked with {@link Query#cached()} be read from a cache.
+     * Updates made through this database drop the results they affect.
+     */
+    public synchronized QueryCache enableCache(QueryCache.Settings settings) {
+        if (cache == null) {
+            this.cache = new QueryCache(settings);
+        }
+
+        return cache;
+    }
 
-            @Override
-            public Connection execute() throws Throwable {
-                return getConnection();
+    /**
+     * Lets updates be appended to a journal in the data folder of the plugin
+     * and replayed in the background, see {@link Query#executeJournaled()}.
+     * {@link #executeUpdateAsync(String, Callback)} goes through it too.
+     */
+    public synchronized WriteJournal enableJournal(SparkPlugin plugin, WriteJournal.Settings settings) throws IOException {
+        if (journal == null) {
+            this.journal = new WriteJournal(plugin, this, new File(plugin.getDataFolder(), "journal"), settings);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Cached tables, columns and row counts
+     */
+    public Schema getSchema() {
+        if (schema == null) {
+            synchronized (this) {
+                if (schema == null) {
+                    schema = new Schema(pool, type);
+                }
             }
+        }
+
+        return schema;
+    }
+
+    /**
+     * Called after a statement has been run through this database, drops
+     * the cached results and schema it may have changed
+     */
+    public void invalidate(String sql) {
+        if (cache != null) {
+            cache.invalidate(sql);
+        }
+
+        if (schema != null) {
+            schema.invalidate(sql);
+        }
+    }
+
+    /**
+     * Runs the work on one connection and commits once, or rolls back if it
+     * throws. Lock contention is retried, see {@link Transaction}.
+     * 
+     * This blocks until the transaction has been committed, use
+     * {@link #transactionAsync(Transaction.Work)} on the main thread. In
+     * SQLite performance mode the work runs on the writer thread, inside the
+     * writer's own transaction, and holds up every other write while it
+     * runs.
+     */
+    public <T> T transaction(Transaction.Work<T> work) throws SQLException {
+        return transaction(transactionSettings, work);
+    }
+
+    public <T> T transaction(Transaction.Settings settings, Transaction.Work<T> work) throws SQLException {
+        return Transaction.execute(this, settings, work);
+    }
+
+    public <T> SparkFuture<T> transactionAsync(Transaction.Work<T> work) {
+        return SparkFuture.supplyBlocking(Spark.getMainInstance(), () -> transaction(work));
+    }
+
+    /**
+     * Runs the same statement once for every row in a single transaction
+     *
+     * @return the number of rows changed by each row
+     */
+    public int[] executeBatch(String sql, Iterable<Object[]> rows) throws SQLException {
+        Query query = query(sql);
 
-        }.run();
+        for (Object[] row : rows) {
+            query.bind(row).addBatch();
+        }
+
+        return query.executeBatch();
     }
 
     public int executeUpdate(String sql) {
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
         int i = -1;
         try {
-            Statement statement = connection.createStatement();
-            i = statement.executeUpdate(sql);
-            statement.close();
+            if (writer != null) {
+                i = writer.execute((c) -> {
+                    sample.acquired();
+
+                    try (Statement statement = c.createStatement()) {
+                        return statement.executeUpdate(sql);
+                    }
+                });
+            } else {
+                try (Connection c = pool.borrow(); Statement statement = c.createStatement()) {
+                    sample.acquired();
+                    i = statement.executeUpdate(sql);
+                }
+            }
+
+            sample.rows(i);
+            sample.end(false);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            sample.end(true);
+            invalidate(sql);
         }
 
         return i;
     }
 
+    /**
+     * With a journal the update is only appended to it, and the callback is
+     * called right away with -1 as the number of rows changed is not known
+     * yet
+     */
     public void executeUpdateAsync(String sql, Callback<Integer> callback) {
-        new AsyncTask<Integer>(callback) {
+        WriteJournal journal = this.journal;
 
-            @Override
-            public Integer execute() throws Throwable {
-                return executeUpdate(sql);
+        if (journal != null && journal.append(sql)) {
+            if (callback != null) {
+                callback.onFinish(-1, null);
             }
 
-        }.run();
+            return;
+        }
+
+        SparkFuture<Integer> future = query(sql).executeUpdateAsync();
+
+        if (callback != null) {
+            future.onFinish(callback);
+        }
     }
 
+    /**
+     * The rows are read into memory and the connection is returned to the
+     * pool before this returns, the result set does not have to be closed.
+     * 
+     * @deprecated values are put into the SQL with {@link String#format},
+     * use {@link #query(String)} so they are bound as parameters
+     */
+    @Deprecated
     public ResultSet executeQuery(String sql, Object... values) {
         ResultSet rs = null;
-        try {
-            if (values != null && values.length >= 1) {
-                rs = connection.createStatement().executeQuery(String.format(sql, values));
-            } else {
-                rs = connection.createStatement().executeQuery(sql);
-            }
+        
+        if (values != null && values.length >= 1) {
+            sql = String.format(sql, values);
+        }
+        
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+        
+        try (Connection c = pool.borrow(); Statement statement = c.createStatement(); ResultSet result = statement.executeQuery(sql)) {
+            sample.acquired();
+            
+            CachedRowSet cached = rowSets().createCachedRowSet();
+                         cached.populate(result);
+            
+            sample.rows(cached.size());
+            rs = cached;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            sample.end(rs == null);
         }
 
         return rs;
     }
+    
+    private static synchronized RowSetFactory rowSets() throws SQLException {
+        if (rowSets == null) {
+            rowSets = RowSetProvider.newFactory();
+        }
+        
+        return rowSets;
+    }
 
     public void executeQueryAsync(String sql, Callback<ResultSet> callback, Object... vals) {
-        new AsyncTask<ResultSet>(callback) {
-
-            @Override
-            public ResultSet execute() throws Throwable {
-                return executeQuery(sql, vals);
-            }
+        async(() -> executeQuery(sql, vals), callback);
+    }
 
-        }.run();
+    /**
+     * Closes the dependent before this database when it is closed, for
+     * things that still write to it while closing. The last one added is
+     * closed first. Closing it again later must do nothing.
+     */
+    public void closeFirst(@NonNull AutoCloseable dependent) {
+        dependents.add(dependent);
     }
 
     public void close() {
-        try {
-            this.connection.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        for (AutoCloseable dependent : Lists.reverse(dependents)) {
+            try {
+                dependent.close();
+            } catch (Exception e) {
+                Log.getMain().severe("Unable to close %s before its database. Error: %s", dependent, e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        dependents.clear();
+
+        if (journal != null) {
+            journal.close();
+        }
+        
+        if (writer != null) {
+            writer.close();
+        }
+        
+        pool.close();
+        
+        synchronized (this) {
+            try {
+                if (this.connection != null) {
+                    this.connection.close();
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -234,8 +512,8 @@ public class Database {
             return true;
         }
         
-        try {
-            return connection.isValid(timeout);
+        try (Connection c = pool.borrow()) {
+            return c.isValid(timeout);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -243,38 +521,36 @@ public class Database {
         return true;
     }
     
+    /**
+     * Counts the rows of a table. The count is cached for a short while, see
+     * {@link Schema}.
+     */
     public int getRowCount(String table) {
-        int size = 0;
+        return (int) getRowCount(table, false);
+    }
 
+    /**
+     * @param approximate allow an estimate from the database statistics
+     * instead of counting every row
+     */
+    public long getRowCount(String table, boolean approximate) {
         try {
-            ResultSet rs = executeQuery("SELECT COUNT(*) AS count FROM %s", table);
-            if (rs.next()) {
-                size = rs.getInt("count");
-            }
-
-            rs.close();
+            return getSchema().getRowCount(table, approximate);
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        return size;
+        return 0;
     }
 
     public void getRowCountAsync(String table, Callback<Integer> callback) {
-        new AsyncTask<Integer>(callback) {
-
-            @Override
-            public Integer execute() throws Throwable {
-                return getRowCount(table);
-            }
-
-        }.run();
+        async(() -> getRowCount(table), callback);
     }
 
     public Statement createStatement() {
         Statement st = null;
         try {
-            st = connection.createStatement();
+            st = getConnection().createStatement();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -283,23 +559,22 @@ public class Database {
     }
 
     public void createStatementAsync(Callback<Statement> callback) {
-        new AsyncTask<Statement>(callback) {
-
-            @Override
-            public Statement execute() throws Throwable {
-                return createStatement();
-            }
-        }.run();
+        async(() -> createStatement(), callback);
     }
 
+    /**
+     * @deprecated values are put into the SQL with {@link String#format},
+     * use {@link #query(String)} so they are bound as parameters
+     */
+    @Deprecated
     public PreparedStatement prepareStatement(String sql, Object... values) {
         PreparedStatement ps = null;
 
         try {
             if (values != null && values.length >= 1) {
-                ps = connection.prepareStatement(String.format(sql, values));
+                ps = getConnection().prepareStatement(String.format(sql, values));
             } else {
-                ps = connection.prepareStatement(sql);
+                ps = getConnection().prepareStatement(sql);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -309,27 +584,14 @@ public class Database {
     }
 
     public void prepareStatementAsync(String sql, Callback<PreparedStatement> callback, Object... vals) {
-        new AsyncTask<PreparedStatement>(callback) {
-
-            @Override
-            public PreparedStatement execute() throws Throwable {
-                return prepareStatement(sql, vals);
-            }
-
-        }.run();
+        async(() -> prepareStatement(sql, vals), callback);
     }
     
     public Set<String> getColumns(String table) {
-        Set<String> set = Sets.newHashSet();
+        Set<String> set = Sets.newLinkedHashSet();
         
         try {
-            try (ResultSet rs = executeQuery("SELECT %s FROM %s", "*", table)) {
-                ResultSetMetaData md = rs.getMetaData();
-                
-                for (int i = 1; i <= md.getColumnCount(); ++i) {
-                    set.add(md.getColumnName(i));
-                }
-            }
+            set.addAll(getSchema().getColumns(table));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -338,26 +600,14 @@ public class Database {
     }
     
     public void getColumnsAsync(String table, Callback<Set<String>> callback) {
-        new AsyncTask<Set<String>>(callback) {
-
-            @Override
-            public Set<String> execute() throws Throwable {
-                return getColumns(table);
-            }
-            
-        }.run();
+        async(() -> getColumns(table), callback);
     }
     
     public Set<String> getTables() {
         Set<String> set = Sets.newLinkedHashSet();
         
         try {
-            DatabaseMetaData md = connection.getMetaData();
-            ResultSet rs = md.getTables(null, null, "%", null);
-            
-            while (rs.next()) {
-                set.add(rs.getString(3));
-            }
+            set.addAll(getSchema().getTables());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -366,33 +616,14 @@ public class Database {
     }
     
     public void getTablesAsync(Callback<Set<String>> callback) {
-        new AsyncTask<Set<String>>(callback) {
-
-            @Override
-            public Set<String> execute() throws Throwable {
-                return getTables();
-            }
-            
-        }.run();
+        async(() -> getTables(), callback);
     }
     
     public boolean tableContains(String table, String column, Object value) {
-//        final String sql = "SELECT COUNT(%s) AS %s Count FROM %s WHERE %s=%s";
-//        final ResultSet rs = executeQuery(sql, column, column, table, column, value);
-        
-        final String sql = "SELECT COUNT(*) FROM `%s` WHERE `%s` = '%s'";
-        final ResultSet rs = executeQuery(sql, table, column, value);
+        final String sql = String.format("SELECT 1 FROM %s WHERE %s = ? LIMIT 1", quote(table), quote(column));
         
         try {
-            if (rs == null || rs.isAfterLast()) {
-                return false;
-            }
-            
-            if (rs.isBeforeFirst()) {
-                rs.next();
-            }
-            
-            return rs.getInt(1) != 0;
+            return query(sql).bind(value).executeQuery((rs) -> rs.next());
         } catch (SQLException ex) {
             ex.printStackTrace();
         }
@@ -400,34 +631,48 @@ public class Database {
         return false;
     }
     
-    public void tableContainsAsync(String table, String column, Object value, Callback<Boolean> callback) {
-        new AsyncTask<Boolean>(callback) {
-
-            @Override
-            public Boolean execute() throws Throwable {
-                return tableContains(table, column, value);
-            }        
-            
-        }.run();
+    /**
+     * Quotes a table or column name, names cannot be bound as parameters
+     */
+    public static String quote(String identifier) {
+        return "`" + identifier.replace("`", "``") + "`";
     }
     
-    public boolean isClosed() {
-        boolean b = false;
+    /**
+     * The callback methods run the blocking method on the
+     * {@link codes.goblom.spark.internals.task.BlockingExecutor} and hand it
+     * the result, use {@link #query(String)} for a future with a timeout
+     */
+    private static <T> void async(ExecutorNoArgs<T, ? extends Throwable> body, Callback<T> callback) {
+        SparkFuture<T> future = SparkFuture.supplyBlocking(Spark.getMainInstance(), body);
         
-        try {
-            b = connection.isClosed();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (callback != null) {
+            future.onFinish(callback);
         }
-        
-        return b;
     }
     
+    public void tableContainsAsync(String table, String column, Object value, Callback<Boolean> callback) {
+        async(() -> tableContains(table, column, value), callback);
+    }
+    
+    public boolean isClosed() {
+        return pool == null || pool.isClosed();
+    }
+    
+    /**
+     * @deprecated use {@link Query#cursor()} or
+     * {@link Query#stream(codes.goblom.spark.misc.database.RowMapper)}, this
+     * reads every cell of every row into its own object
+     */
+    @Deprecated
     public static SimpleResultSetIterator createSimpleIterator(ResultSet rs) {
         return new SimpleResultSetIterator(rs);
     }
     
-    
+    /**
+     * @deprecated use {@link codes.goblom.spark.misc.database.RowCursor}
+     */
+    @Deprecated
     public static class SimpleResultSetIterator implements Iterable<ResultSetIteratorEntry> {
 
         private final List<ResultSetIteratorEntry> data = Lists.newLinkedList();
@@ -438,16 +683,16 @@ public class Database {
             }
             
             try {
-                Set<String> columns = Sets.newLinkedHashSet();
                 ResultSetMetaData meta = rs.getMetaData();
+                String[] columns = new String[meta.getColumnCount()];
                 
-                for (int columnCount = meta.getColumnCount(), i = 1; i <= columnCount; ++i) {
-                    columns.add(meta.getColumnName(i));
+                for (int i = 0; i < columns.length; ++i) {
+                    columns[i] = meta.getColumnName(i + 1);
                 }
                 
                 while (rs.next()) {
-                    for (String column : columns) {
-                        ResultSetIteratorEntry entry = new ResultSetIteratorEntry(column, rs.getObject(column));
+                    for (int i = 0; i < columns.length; ++i) {
+                        ResultSetIteratorEntry entry = new ResultSetIteratorEntry(columns[i], rs.getObject(i + 1));
                         
                         data.add(entry);
                     }
@@ -511,19 +756,38 @@ public class Database {
                 String password = cfg.get("password", "");
                 String dbName = cfg.get("dbName", "minecraft");
                 
-                db = new Database(host, port, dbName, username, password);
+                db = new Database(host, port, dbName, username, password, ConnectionPool.Settings.from(cfg, new ConnectionPool.Settings()));
                 break;
             case SQLite:
                 String file = cfg.get("file", "database.db");
                 
-                db = new Database(file);
+                if (cfg.get("sqlite.performance-mode", false)) {
+                    db = new Database(new File(file), SQLiteWriter.Settings.from(cfg, new SQLiteWriter.Settings()));
+                } else {
+                    db = new Database(new File(file), ConnectionPool.Settings.from(cfg, new ConnectionPool.Settings(1)));
+                }
                 break;
             case OTHER:
                 throw new IllegalArgumentException("Database.GenericConnect() does not support Database.Type.OTHER");
         }
         
-        if (!Utils.isValid(db)) {
+        // Utils.isValid is true for a closed database, not an open one
+        if (db == null || db.isClosed()) {
             Log.find(plugin).severe("Unable to connect to database with specified values in the 'database' config");
+        } else {
+            db.setTransactionSettings(Transaction.Settings.from(cfg, new Transaction.Settings()));
+            
+            if (cfg.get("cache.enabled", false)) {
+                db.enableCache(QueryCache.Settings.from(cfg, new QueryCache.Settings()));
+            }
+            
+            if (cfg.get("journal.enabled", false)) {
+                try {
+                    db.enableJournal(plugin, WriteJournal.Settings.from(cfg, new WriteJournal.Settings()));
+                } catch (IOException e) {
+                    Log.find(plugin).severe("Unable to open the write journal, updates will go straight to the database. Error: %s", e.getMessage());
+                }
+            }
         }
         
         return db;
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.ExecutorNoArgs;
+import com.google.common.collect.Sets;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+/**
+ * A small JDBC connection pool.
+ *
+ * Connections handed out by {@link #borrow()} go back to the pool when they
+ * are closed, so they should always be used with try-with-resources. A
+ * connection that has been idle for a while is checked with
+ * {@link Connection#isValid(int)} before it is handed out.
+ *
+ * A thread that borrows again while it still holds a connection, a query
+ * run inside a transaction or while reading a {@link RowCursor}, is lent
+ * the connection it already holds. It goes back to the pool once every
+ * borrow has been closed, so nested borrows never wait on the thread
+ * itself, even with a pool of one.
+ *
+ * Every 30 seconds connections that have been idle for too long are closed,
+ * the pool is topped back up to its minimum and connections that have been
+ * borrowed for longer than {@link Settings#leakThreshold} are logged with
+ * the thread that borrowed them. Turn on {@link Settings#leakStackTraces} to
+ * log the stack of whoever borrowed them as well.
+ *
+ * @author Goblom
+ */
+public final class ConnectionPool implements AutoCloseable {
+
+    private static final ScheduledExecutorService HOUSEKEEPER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "Spark Connection Pool");
+               t.setDaemon(true);
+
+        return t;
+    });
+
+    private static final long HOUSEKEEPING_INTERVAL = 30;
+
+    /**
+     * Times are in milliseconds unless stated otherwise
+     */
+    public static final class Settings {
+        public int minIdle = 1;
+        public int maxSize = 10;
+        public long borrowTimeout = 10000;
+        public long idleTimeout = 10 * 60 * 1000;
+        public long leakThreshold = 30 * 1000;
+
+        /**
+         * Keeps the stack of every borrow to log with a leak, costly
+         */
+        public boolean leakStackTraces = false;
+
+        /**
+         * Connections idle for less than this are not validated on borrow
+         */
+        public long validateAfter = 1000;
+
+        /**
+         * In seconds, as {@link Connection#isValid(int)} takes it
+         */
+        public int validationTimeout = 2;
+
+        /**
+         * Prepared statements kept per connection, 0 to not cache them
+         */
+        public int statementCacheSize = 64;
+
+        public Settings() { }
+
+        public Settings(int maxSize) {
+            this.maxSize = maxSize;
+            this.minIdle = Math.min(minIdle, maxSize);
+        }
+
+        /**
+         * Reads the settings under {@code pool} in a config, missing values
+         * are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.minIdle = cfg.get("pool.min-idle", defaults.minIdle);
+                     s.maxSize = cfg.get("pool.max-size", defaults.maxSize);
+                     s.borrowTimeout = cfg.get("pool.borrow-timeout-ms", (int) defaults.borrowTimeout);
+                     s.idleTimeout = cfg.get("pool.idle-timeout-ms", (int) defaults.idleTimeout);
+                     s.leakThreshold = cfg.get("pool.leak-threshold-ms", (int) defaults.leakThreshold);
+                     s.leakStackTraces = cfg.get("pool.leak-stack-traces", defaults.leakStackTraces);
+                     s.validateAfter = cfg.get("pool.validate-after-ms", (int) defaults.validateAfter);
+                     s.validationTimeout = cfg.get("pool.validation-timeout-seconds", defaults.validationTimeout);
+                     s.statementCacheSize = cfg.get("pool.statement-cache-size", defaults.statementCacheSize);
+
+            return s;
+        }
+    }
+
+    private final ExecutorNoArgs<Connection, SQLException> factory;
+
+    @Getter
+    private final Settings settings;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+    private final Set<Entry> borrowed = Sets.newConcurrentHashSet();
+    private final AtomicInteger open = new AtomicInteger();
+    private final ThreadLocal<Entry> held = new ThreadLocal<>();
+    private final ScheduledFuture<?> housekeeping;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param factory opens a new connection to the database
+     * @throws SQLException if the first connection could not be opened
+     */
+    public ConnectionPool(ExecutorNoArgs<Connection, SQLException> factory, Settings settings) throws SQLException {
+        this.factory = factory;
+        this.settings = settings;
+        this.permits = new Semaphore(Math.max(1, settings.maxSize), true);
+
+        // Fail now rather than on the first query if the database is unreachable
+        idle.offerLast(create());
+
+        this.housekeeping = HOUSEKEEPER.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_INTERVAL, HOUSEKEEPING_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to {@link Settings#borrowTimeout} for
+     * one to be free. Closing it returns it to the pool. If this thread
+     * already holds one it is lent that one again without waiting.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed");
+        }
+
+        Entry current = held.get();
+
+        if (current != null) {
+            synchronized (current) {
+                if (current.owner == Thread.currentThread()) {
+                    current.holds++;
+                    return lease(current);
+                }
+            }
+
+            held.remove(); // Returned from another thread
+        }
+
+        try {
+            if (!permits.tryAcquire(settings.borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException(String.format("Timed out after %sms waiting for a connection, %s are in use", settings.borrowTimeout, borrowed.size()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            Entry entry;
+
+            while ((entry = idle.pollFirst()) != null && !isAlive(entry)) {
+                destroy(entry);
+            }
+
+            if (entry == null) {
+                entry = create();
+            }
+
+            return lend(entry);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a connection that is not part of the pool, the caller is
+     * responsible for closing it
+     */
+    public Connection openUnpooled() throws SQLException {
+        return factory.execute();
+    }
+
+    public int getOpen() {
+        return open.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getInUse() {
+        return borrowed.size();
+    }
+
+    /**
+     * @return threads waiting for a connection
+     */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.housekeeping.cancel(false);
+
+        Entry entry;
+
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+
+        // Borrowed connections are closed when they are returned
+    }
+
+    private boolean isAlive(Entry entry) {
+        if (System.nanoTime() - entry.lastUsed < TimeUnit.MILLISECONDS.toNanos(settings.validateAfter)) {
+            return true;
+        }
+
+        try {
+            return entry.connection.isValid(settings.validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private Entry create() throws SQLException {
+        Connection connection = factory.execute();
+
+        if (connection == null) {
+            throw new SQLException("Unable to open a connection to the database");
+        }
+
+        open.incrementAndGet();
+
+        return new Entry(connection, settings.statementCacheSize > 0 ? new StatementCache(connection, settings.statementCacheSize) : null);
+    }
+
+    private void destroy(Entry entry) {
+        open.decrementAndGet();
+
+        try {
+            entry.connection.close();
+        } catch (SQLException e) { } // Already broken
+    }
+
+    private Connection lend(Entry entry) {
+        entry.borrowedAt = System.nanoTime();
+        entry.thread = Thread.currentThread().getName();
+        entry.borrower = settings.leakThreshold > 0 && settings.leakStackTraces ? new Throwable("Borrowed by " + entry.thread) : null;
+        entry.reported = false;
+
+        synchronized (entry) {
+            entry.owner = Thread.currentThread();
+            entry.holds = 1;
+        }
+
+        borrowed.add(entry);
+        held.set(entry);
+
+        return lease(entry);
+    }
+
+    private Connection lease(Entry entry) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] { Connection.class }, new Lease(entry));
+    }
+
+    private void release(Entry entry) {
+        synchronized (entry) {
+            // Still held by an outer borrow of the same thread
+            if (--entry.holds > 0) {
+                return;
+            }
+
+            entry.owner = null;
+        }
+
+        if (held.get() == entry) {
+            held.remove();
+        }
+
+        borrowed.remove(entry);
+
+        try {
+            if (closed || entry.connection.isClosed()) {
+                destroy(entry);
+                return;
+            }
+
+            // Do not hand the next borrower someone else's open transaction
+            if (!entry.connection.getAutoCommit()) {
+                entry.connection.rollback();
+                entry.connection.setAutoCommit(true);
+            }
+
+            if (entry.statements != null) {
+                entry.statements.release();
+            }
+
+            entry.lastUsed = System.nanoTime();
+            entry.borrower = null;
+            idle.offerFirst(entry);
+        } catch (SQLException e) {
+            destroy(entry);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void housekeep() {
+        if (closed) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+
+        try {
+            // Least recently used connections are at the end
+            Iterator<Entry> it = idle.descendingIterator();
+
+            while (it.hasNext() && open.get() > settings.minIdle) {
+                Entry entry = it.next();
+
+                if (now - entry.lastUsed > TimeUnit.MILLISECONDS.toNanos(settings.idleTimeout) && idle.remove(entry)) {
+                    destroy(entry);
+                }
+            }
+
+            while (!closed && open.get() < Math.min(settings.minIdle, settings.maxSize)) {
+                idle.offerLast(create());
+            }
+        } catch (SQLException e) {
+            Log.getMain().warning("Unable to open a pooled database connection. Error: %s", e.getMessage());
+        }
+
+        if (settings.leakThreshold <= 0) {
+            return;
+        }
+
+        for (Entry entry : borrowed) {
+            long held = TimeUnit.NANOSECONDS.toMillis(now - entry.borrowedAt);
+            Throwable borrower = entry.borrower;
+
+            if (entry.reported || held <= settings.leakThreshold) {
+                continue;
+            }
+
+            entry.reported = true;
+
+            if (borrower != null) {
+                Log.getMain().warning("A database connection has been borrowed for %sms without being closed, it may have leaked. Borrowed at:", held);
+                borrower.printStackTrace();
+            } else {
+                Log.getMain().warning("A database connection borrowed by %s has not been closed for %sms, it may have leaked. Set pool.leak-stack-traces to see where.", entry.thread, held);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final Connection connection;
+        private final StatementCache statements;
+
+        private volatile long lastUsed = System.nanoTime();
+        private volatile long borrowedAt;
+        private volatile String thread;
+        private volatile Throwable borrower;
+        private volatile boolean reported;
+
+        // Guarded by the entry
+        private Thread owner;
+        private int holds;
+
+        private Entry(Connection connection, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+        }
+    }
+
+    /**
+     * What a borrower actually holds. Closing it returns the connection once
+     * no other borrow of the same thread holds it, anything else used after
+     * that fails.
+     */
+    private final class Lease implements InvocationHandler {
+        private final Entry entry;
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (returned.compareAndSet(false, true)) {
+                        release(entry);
+                    }
+
+                    return null;
+                case "isClosed":
+                    return returned.get() || entry.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + entry.connection + "]";
+            }
+
+            if (returned.get()) {
+                throw new SQLException("This connection has already been returned to the pool");
+            }
+
+            if (entry.statements != null && method.getName().equals("prepareStatement") && args.length == 1) {
+                return entry.statements.prepare((Connection) proxy, (String) args[0]);
+            }
+
+            try {
+                return method.invoke(entry.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.SparkPlugin;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * Writes the database refused, kept in a file one per line so they can be
+ * fixed by hand instead of being retried forever and holding up the writes
+ * behind them.
+ *
+ * @author Goblom
+ */
+final class DeadLetters {
+
+    private final SparkPlugin plugin;
+    private final File file;
+
+    DeadLetters(SparkPlugin plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    synchronized void reject(String sql, Object[] values, Exception error) {
+        Log.find(plugin).severe("The database refused a write, it has been moved to %s. Error: %s", file.getName(), error.getMessage());
+
+        if (!file.getParentFile().isDirectory()) {
+            file.getParentFile().mkdirs();
+        }
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            writer.printf("%s\t%s\t%s\t%s%n", new Timestamp(System.currentTimeMillis()), sql, Arrays.deepToString(values), error.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the database will never accept the statement, rather
+     * than being unreachable or busy
+     */
+    static boolean isRefused(Exception e) {
+        if (!(e instanceof SQLException)) {
+            return true;
+        }
+
+        SQLException sql = (SQLException) e;
+
+        if (e instanceof SQLNonTransientConnectionException || Transaction.isRetryable(sql)) {
+            return false;
+        }
+
+        if (e instanceof SQLNonTransientException) {
+            return true;
+        }
+
+        String state = sql.getSQLState();
+        String message = sql.getMessage() == null ? "" : sql.getMessage();
+
+        // 22 data, 23 constraint, 42 syntax or access
+        if (state != null && (state.startsWith("22") || state.startsWith("23") || state.startsWith("42"))) {
+            return true;
+        }
+
+        // The SQLite driver does not set the state
+        return message.contains("SQLITE_CONSTRAINT") || message.contains("SQLITE_ERROR") || message.contains("SQLITE_MISMATCH") || message.contains("SQLITE_TOOBIG");
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.SparkPlugin;
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.task.SparkFuture;
+import codes.goblom.spark.internals.tools.Histogram;
+import codes.goblom.spark.misc.Database;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Keeps a record for every online player in memory, loaded from the database
+ * while they log in and saved back in batches.
+ *
+ * Records are loaded during {@link AsyncPlayerPreLoginEvent}, so by the time
+ * the player joins {@link #get(UUID)} returns theirs without touching the
+ * database. A player whose record cannot be loaded is not let in, rather
+ * than playing with an empty one that would overwrite theirs.
+ *
+ * Records marked with {@link #markDirty(UUID)} are saved every
+ * {@link Settings#saveInterval} and when the player quits. The values to
+ * save are read from the record on the main thread, the statement runs on
+ * the {@link codes.goblom.spark.internals.task.BlockingExecutor}. Records
+ * stay cached for {@link Settings#keepOffline} after a player quits, so a
+ * quick rejoin never reads what has not been saved yet.
+ *
+ * <pre>
+ * PlayerDataStore&lt;Stats&gt; stats = new PlayerDataStore&lt;&gt;(plugin, db, new PlayerDataStore.Adapter&lt;Stats&gt;() {
+ *     public Stats load(Database db, UUID uuid) throws SQLException {
+ *         return db.query("SELECT kills, deaths FROM stats WHERE uuid = ?").bind(uuid)
+ *                  .executeQuery((rs) -&gt; rs.next() ? new Stats(rs.getInt(1), rs.getInt(2)) : null);
+ *     }
+ *
+ *     public Stats create(UUID uuid) { return new Stats(0, 0); }
+ *
+ *     public String getSaveSql() { return "REPLACE INTO stats (uuid, kills, deaths) VALUES (?, ?, ?)"; }
+ *
+ *     public Object[] toRow(UUID uuid, Stats s) { return new Object[] { uuid, s.kills, s.deaths }; }
+ * }, new PlayerDataStore.Settings());
+ *
+ * stats.update(player, (s) -&gt; s.kills++);
+ * </pre>
+ *
+ * Everything still dirty is saved when the plugin disables or the database
+ * is closed, whichever comes first, for at most
+ * {@link Settings#shutdownTimeout}.
+ *
+ * @author Goblom
+ */
+public final class PlayerDataStore<T> implements Listener, AutoCloseable {
+
+    public static interface Adapter<T> {
+
+        /**
+         * Called off the main thread
+         *
+         * @return the record of the player, or null if they do not have one
+         * yet
+         */
+        public T load(Database database, UUID uuid) throws SQLException;
+
+        /**
+         * @return the record of a player that does not have one yet
+         */
+        public T create(UUID uuid);
+
+        /**
+         * The statement that saves a record, it should insert or replace
+         */
+        public String getSaveSql();
+
+        /**
+         * Called on the main thread, the values are bound to
+         * {@link #getSaveSql()}
+         */
+        public Object[] toRow(UUID uuid, T value);
+    }
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+        public long saveInterval = 30 * 1000;
+        public int batchSize = 500;
+        public long keepOffline = 60 * 1000;
+        public long shutdownTimeout = 10 * 1000;
+        public String loadFailedMessage = "Unable to load your data, please try again in a moment";
+
+        /**
+         * Reads the settings under {@code player-data} in a config, missing
+         * values are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.saveInterval = cfg.get("player-data.save-interval-ms", (int) defaults.saveInterval);
+                     s.batchSize = cfg.get("player-data.batch-size", defaults.batchSize);
+                     s.keepOffline = cfg.get("player-data.keep-offline-ms", (int) defaults.keepOffline);
+                     s.shutdownTimeout = cfg.get("player-data.shutdown-timeout-ms", (int) defaults.shutdownTimeout);
+                     s.loadFailedMessage = cfg.get("player-data.load-failed-message", defaults.loadFailedMessage);
+
+            return s;
+        }
+    }
+
+    private final SparkPlugin plugin;
+    private final Database database;
+    private final Adapter<T> adapter;
+
+    @Getter
+    private final Settings settings;
+
+    private final Map<UUID, Record<T>> records = Maps.newConcurrentMap();
+    private final BukkitTask task;
+    private volatile boolean closed = false;
+
+    /**
+     * Nanoseconds taken to load a record
+     */
+    @Getter
+    private final Histogram loadLatency = new Histogram();
+
+    /**
+     * Nanoseconds taken by each batch of saves
+     */
+    @Getter
+    private final Histogram saveLatency = new Histogram();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong saveFailures = new AtomicLong();
+
+    /**
+     * Must be created on the main thread, players already online are loaded
+     * in the background
+     */
+    public PlayerDataStore(SparkPlugin plugin, Database database, Adapter<T> adapter, Settings settings) {
+        this.plugin = plugin;
+        this.database = database;
+        this.adapter = adapter;
+        this.settings = settings;
+
+        long ticks = Math.max(1, settings.saveInterval / 50);
+
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+        this.task = Bukkit.getScheduler().runTaskTimer(plugin, this::flush, ticks, ticks);
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            loadAsync(player.getUniqueId());
+        }
+
+        // Whichever comes first, the database is usually closed in disable() before closeOnDisable runs
+        plugin.closeOnDisable(this);
+        database.closeFirst(this);
+    }
+
+    /**
+     * Never blocks
+     *
+     * @return the record of an online player, or null if it has not been
+     * loaded
+     */
+    public T get(UUID uuid) {
+        Record<T> record = records.get(uuid);
+
+        if (record == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return record.value;
+    }
+
+    public T get(Player player) {
+        return get(player.getUniqueId());
+    }
+
+    public boolean isLoaded(UUID uuid) {
+        return records.containsKey(uuid);
+    }
+
+    /**
+     * Queues the record to be saved with the next batch
+     */
+    public void markDirty(UUID uuid) {
+        Record<T> record = records.get(uuid);
+
+        if (record != null) {
+            synchronized (record) {
+                record.version++;
+            }
+        }
+    }
+
+    /**
+     * Changes the record of a player and marks it dirty, does nothing if it
+     * has not been loaded
+     *
+     * @return false if the record has not been loaded
+     */
+    public boolean update(Player player, Consumer<T> change) {
+        T value = get(player.getUniqueId());
+
+        if (value == null) {
+            return false;
+        }
+
+        change.accept(value);
+        markDirty(player.getUniqueId());
+
+        return true;
+    }
+
+    /**
+     * @return records cached, online players and those that recently quit
+     */
+    public int getCached() {
+        return records.size();
+    }
+
+    /**
+     * @return records changed since they were last saved
+     */
+    public int getDirty() {
+        int dirty = 0;
+
+        for (Record<T> record : records.values()) {
+            synchronized (record) {
+                if (record.isDirty()) {
+                    dirty++;
+                }
+            }
+        }
+
+        return dirty;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return calls to {@link #get(UUID)} for a record that was not loaded
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    /**
+     * @return records written to the database
+     */
+    public long getSaved() {
+        return saved.get();
+    }
+
+    /**
+     * @return batches that failed and will be retried
+     */
+    public long getSaveFailures() {
+        return saveFailures.get();
+    }
+
+    /**
+     * Saves every dirty record now instead of waiting for the interval,
+     * must be called on the main thread
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+        List<Pending<T>> pending = Lists.newArrayList();
+
+        for (Record<T> record : records.values()) {
+            synchronized (record) {
+                if (record.isDirty() && !record.saving) {
+                    pending.add(snapshot(record));
+                } else if (!record.online && !record.saving && !record.isDirty() && now - record.touched > settings.keepOffline) {
+                    records.remove(record.uuid, record);
+                    record.removed = true;
+                }
+            }
+        }
+
+        saveAsync(pending);
+    }
+
+    /**
+     * Saves what is left on the calling thread, for at most
+     * {@link Settings#shutdownTimeout}. Called when the plugin disables.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        this.closed = true;
+        task.cancel();
+        HandlerList.unregisterAll(this);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.shutdownTimeout);
+
+        // A save still running could finish after this one and write older values over it
+        while (isSaving() && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        List<Pending<T>> pending = Lists.newArrayList();
+
+        for (Record<T> record : records.values()) {
+            synchronized (record) {
+                if (record.isDirty()) {
+                    pending.add(snapshot(record));
+                }
+            }
+        }
+
+        int lost = save(pending, deadline);
+
+        if (lost > 0) {
+            Log.find(plugin).severe("Unable to save %s player records while disabling, their changes have been lost", lost);
+        }
+
+        records.clear();
+    }
+
+    private boolean isSaving() {
+        for (Record<T> record : records.values()) {
+            synchronized (record) {
+                if (record.saving) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @EventHandler(priority = EventPriority.LOW)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        UUID uuid = event.getUniqueId();
+        Record<T> record = records.get(uuid);
+
+        if (record != null) {
+            synchronized (record) {
+                if (!record.removed) {
+                    // Still cached from their last visit, and newer than what was saved
+                    record.touched = System.currentTimeMillis();
+                    return;
+                }
+            }
+        }
+
+        try {
+            records.putIfAbsent(uuid, new Record<>(uuid, load(uuid)));
+        } catch (SQLException | RuntimeException e) {
+            Log.find(plugin).severe("Unable to load the record of %s (%s). Error: %s", event.getName(), uuid, e.getMessage());
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, settings.loadFailedMessage);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        UUID uuid = event.getPlayer().getUniqueId();
+        Record<T> record = records.get(uuid);
+
+        if (record == null) {
+            // Joined before this store was created
+            loadAsync(uuid);
+            return;
+        }
+
+        synchronized (record) {
+            record.online = true;
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        Record<T> record = records.get(event.getPlayer().getUniqueId());
+
+        if (record == null) {
+            return;
+        }
+
+        Pending<T> pending = null;
+
+        synchronized (record) {
+            record.online = false;
+            record.touched = System.currentTimeMillis();
+
+            // One that is already being saved is picked up by the next flush
+            if (record.isDirty() && !record.saving) {
+                pending = snapshot(record);
+            }
+        }
+
+        if (pending != null) {
+            saveAsync(Collections.singletonList(pending));
+        }
+    }
+
+    private T load(UUID uuid) throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            T value = adapter.load(database, uuid);
+
+            loads.incrementAndGet();
+            return value != null ? value : adapter.create(uuid);
+        } catch (SQLException | RuntimeException e) {
+            loadFailures.incrementAndGet();
+            throw e;
+        } finally {
+            loadLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private void loadAsync(UUID uuid) {
+        SparkFuture.supplyBlocking(plugin, () -> load(uuid)).onFinishSync((value, error) -> {
+            if (error != null) {
+                Log.find(plugin).severe("Unable to load the record of %s. Error: %s", uuid, error.getMessage());
+                return;
+            }
+
+            if (closed) {
+                return;
+            }
+
+            Record<T> record = new Record<>(uuid, value);
+                      record.online = Bukkit.getPlayer(uuid) != null;
+
+            records.putIfAbsent(uuid, record);
+        });
+    }
+
+    // Must hold the lock of the record
+    private Pending<T> snapshot(Record<T> record) {
+        record.saving = true;
+
+        return new Pending<>(record, record.version, adapter.toRow(record.uuid, record.value));
+    }
+
+    private void saveAsync(List<Pending<T>> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        SparkFuture.supplyBlocking(plugin, () -> save(pending, Long.MAX_VALUE));
+    }
+
+    /**
+     * @return the number of records that were not saved
+     */
+    private int save(List<Pending<T>> pending, long deadline) {
+        int lost = 0;
+
+        for (List<Pending<T>> batch : Lists.partition(pending, Math.max(1, settings.batchSize))) {
+            if (isExpired(deadline)) {
+                done(batch, false);
+                lost += batch.size();
+                continue;
+            }
+
+            try {
+                saveBatch(batch, deadline);
+                done(batch, true);
+            } catch (SQLException | RuntimeException e) {
+                saveFailures.incrementAndGet();
+
+                if (batch.size() > 1 && DeadLetters.isRefused(e)) {
+                    // One of them is refused, find out which by saving them one at a time
+                    lost += saveEach(batch, deadline);
+                    continue;
+                }
+
+                done(batch, false);
+                lost += batch.size();
+                Log.find(plugin).severe("Unable to save %s player records, they will be retried. Error: %s", batch.size(), e.getMessage());
+            }
+        }
+
+        return lost;
+    }
+
+    private int saveEach(List<Pending<T>> batch, long deadline) {
+        int lost = 0;
+
+        for (Pending<T> p : batch) {
+            List<Pending<T>> single = Collections.singletonList(p);
+
+            if (isExpired(deadline)) {
+                done(single, false);
+                lost++;
+                continue;
+            }
+
+            try {
+                saveBatch(single, deadline);
+                done(single, true);
+            } catch (SQLException | RuntimeException e) {
+                done(single, false);
+                lost++;
+
+                // Kept dirty, so it is saved once whatever is wrong with it is fixed
+                if (DeadLetters.isRefused(e)) {
+                    Log.find(plugin).severe("The database refused the player record of %s, it will be retried. Row: %s Error: %s", p.record.uuid, Arrays.deepToString(p.row), e.getMessage());
+                } else {
+                    Log.find(plugin).severe("Unable to save the player record of %s, it will be retried. Error: %s", p.record.uuid, e.getMessage());
+                }
+            }
+        }
+
+        return lost;
+    }
+
+    private void saveBatch(List<Pending<T>> batch, long deadline) throws SQLException {
+        long remaining = deadline == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        long start = System.nanoTime();
+        Query query = database.query(adapter.getSaveSql());
+
+        if (remaining > 0) {
+            query.timeout(remaining, TimeUnit.MILLISECONDS);
+        }
+
+        for (Pending<T> p : batch) {
+            query.bind(p.row).addBatch();
+        }
+
+        query.executeBatch();
+
+        saved.addAndGet(batch.size());
+        saveLatency.record(System.nanoTime() - start);
+    }
+
+    private static boolean isExpired(long deadline) {
+        return deadline != Long.MAX_VALUE && deadline - System.nanoTime() <= 0;
+    }
+
+    private static <T> void done(List<Pending<T>> batch, boolean success) {
+        for (Pending<T> p : batch) {
+            synchronized (p.record) {
+                p.record.saving = false;
+
+                if (success && p.version > p.record.saved) {
+                    p.record.saved = p.version;
+                }
+            }
+        }
+    }
+
+    // Guarded by its own lock
+    private static final class Record<T> {
+        private final UUID uuid;
+        private final T value;
+
+        private long version = 0;
+        private long saved = 0;
+        private boolean saving = false;
+        private boolean online = false;
+        private boolean removed = false;
+        private long touched = System.currentTimeMillis();
+
+        private Record(UUID uuid, T value) {
+            this.uuid = uuid;
+            this.value = value;
+        }
+
+        private boolean isDirty() {
+            return version != saved;
+        }
+    }
+
+    private static final class Pending<T> {
+        private final Record<T> record;
+        private final long version;
+        private final Object[] row;
+
+        private Pending(Record<T> record, long version, Object[] row) {
+            this.record = record;
+            this.version = version;
+            this.row = row;
+        }
+    }
+}
@@ -0,0 +1,662 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.internals.Spark;
+import codes.goblom.spark.internals.task.SparkFuture;
+import codes.goblom.spark.misc.Database;
+import com.google.common.collect.Lists;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import lombok.NonNull;
+
+/**
+ * A parameterized statement run on a connection borrowed from a
+ * {@link ConnectionPool}. Values are always bound with {@code ?} and never
+ * put into the SQL itself, so the same SQL is prepared once per connection
+ * and reused from its statement cache.
+ *
+ * <pre>
+ * int changed = db.query("UPDATE players SET coins = ? WHERE uuid = ?")
+ *                 .bind(coins, player.getUniqueId())
+ *                 .executeUpdate();
+ *
+ * String name = db.query("SELECT name FROM players WHERE uuid = ?")
+ *                 .bind(uuid)
+ *                 .executeQuery((rs) -&gt; rs.next() ? rs.getString(1) : null);
+ * </pre>
+ *
+ * Reads marked with {@link #cached()} go through the {@link QueryCache} of
+ * the database, if it has one. Updates drop cached results read from the
+ * tables they write to. If the database has an {@link SQLiteWriter} updates
+ * are run by it.
+ *
+ * Every execute method has an async version that returns a
+ * {@link SparkFuture}, so the result can be handed to the main thread with
+ * {@link SparkFuture#thenSync} or to any executor with
+ * {@link SparkFuture#onFinish(Executor, codes.goblom.spark.internals.Callback)}.
+ * Cancelling the future cancels the statement if it is running. With a
+ * {@link #timeout(long, TimeUnit)} the driver is asked to give up after that
+ * long, and the future fails with a {@link SQLTimeoutException} and the
+ * statement is cancelled if it has not.
+ *
+ * <pre>
+ * db.query("SELECT coins FROM players WHERE uuid = ?")
+ *   .bind(uuid)
+ *   .timeout(2, TimeUnit.SECONDS)
+ *   .executeQueryAsync((rs) -&gt; rs.next() ? rs.getInt(1) : 0)
+ *   .thenSync((coins) -&gt; { player.sendMessage("Coins: " + coins); return coins; });
+ * </pre>
+ *
+ * A query is not thread safe, but once built it can be executed any number
+ * of times.
+ *
+ * @author Goblom
+ */
+public final class Query {
+
+    public static interface ResultHandler<T> {
+        public T handle(ResultSet rs) throws SQLException;
+    }
+
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "Spark Query Timeouts");
+               t.setDaemon(true);
+
+        return t;
+    });
+
+    private final Database database;
+    private final ConnectionPool pool;
+    private final SQLiteWriter writer;
+    private final QueryCache cache;
+    private final String sql;
+
+    private final List<Object[]> batch = Lists.newArrayList();
+    private final List<Object> values = Lists.newArrayList();
+    private int fetchSize = 0;
+    private boolean cached = false;
+    private Object cacheKey = null;
+    private long timeout = 0;
+    private Executor executor = null;
+
+    public Query(ConnectionPool pool, String sql) {
+        this.database = null;
+        this.pool = pool;
+        this.writer = null;
+        this.cache = null;
+        this.sql = sql;
+    }
+
+    public Query(Database database, String sql) {
+        this.database = database;
+        this.pool = database.getPool();
+        this.writer = database.getWriter();
+        this.cache = database.getCache();
+        this.sql = sql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Binds the next parameters, in the order they appear in the SQL
+     */
+    public Query bind(Object... values) {
+        if (values == null) {
+            this.values.add(null);
+        } else {
+            for (Object value : values) {
+                this.values.add(value);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * How many rows the driver should read at once, 0 leaves it up to the
+     * driver. See {@link RowCursor} for MySQL.
+     */
+    public Query fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+
+        return this;
+    }
+
+    /**
+     * How long the statement may run for, 0 to wait for as long as it takes
+     */
+    public Query timeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toMillis(timeout);
+
+        return this;
+    }
+
+    /**
+     * Where the async methods run the statement. By default that is the
+     * {@link codes.goblom.spark.internals.task.BlockingExecutor} if it has
+     * been enabled, or an async Bukkit task.
+     */
+    public Query executor(Executor executor) {
+        this.executor = executor;
+
+        return this;
+    }
+
+    /**
+     * Reads the result of {@link #executeQuery(ResultHandler)} and
+     * {@link #list(RowMapper)} from the cache when it is there. What they
+     * return is shared, so it should not be modified.
+     *
+     * Results are shared between calls given the same handler object. A
+     * lambda that captures a variable is a new object every call, use
+     * {@link #cached(Object)} for those.
+     */
+    public Query cached() {
+        this.cached = true;
+        this.cacheKey = null;
+
+        return this;
+    }
+
+    /**
+     * Like {@link #cached()}, but results are shared between calls given an
+     * equal key, whatever their handler. The key stands for how the rows are
+     * read, calls that read them differently must use different keys.
+     */
+    public Query cached(@NonNull Object key) {
+        this.cached = true;
+        this.cacheKey = key;
+
+        return this;
+    }
+
+    /**
+     * Ends the current row of parameters, see {@link #executeBatch()}
+     */
+    public Query addBatch() {
+        batch.add(values.toArray());
+        values.clear();
+
+        return this;
+    }
+
+    /**
+     * @return the number of rows changed
+     */
+    public int executeUpdate() throws SQLException {
+        return update(values.toArray(), null);
+    }
+
+    /**
+     * Runs every row added with {@link #addBatch()} in a single transaction,
+     * either all of them are applied or none are
+     *
+     * @return the number of rows changed by each row of the batch
+     */
+    public int[] executeBatch() throws SQLException {
+        return batch(rows(), null);
+    }
+
+    /**
+     * The result set is closed and the connection returned once the handler
+     * returns, do not keep a reference to it
+     */
+    public <T> T executeQuery(ResultHandler<T> handler) throws SQLException {
+        return query(values.toArray(), handler, null);
+    }
+
+    /**
+     * Runs the query and walks its rows without reading them all into
+     * memory. The cursor holds a pooled connection until it is closed.
+     */
+    public RowCursor cursor() throws SQLException {
+        return cursor(values.toArray(), null);
+    }
+
+    /**
+     * A lazy stream of the mapped rows, it must be closed if it is not read
+     * to the end
+     *
+     * @see RowCursor#stream(RowMapper)
+     */
+    public <T> Stream<T> stream(RowMapper<T> mapper) throws SQLException {
+        return cursor().stream(mapper);
+    }
+
+    /**
+     * Maps every row into a list
+     */
+    public <T> List<T> list(RowMapper<T> mapper) throws SQLException {
+        return list(values.toArray(), mapper, null);
+    }
+
+    // *****************************
+    // Async
+    // *****************************
+
+    public SparkFuture<Integer> executeUpdateAsync() {
+        final Object[] row = values.toArray();
+
+        return submit((execution) -> update(row, execution));
+    }
+
+    public SparkFuture<int[]> executeBatchAsync() {
+        final List<Object[]> rows = rows();
+
+        return submit((execution) -> batch(rows, execution));
+    }
+
+    public <T> SparkFuture<T> executeQueryAsync(ResultHandler<T> handler) {
+        final Object[] row = values.toArray();
+
+        return submit((execution) -> query(row, handler, execution));
+    }
+
+    public <T> SparkFuture<List<T>> listAsync(RowMapper<T> mapper) {
+        final Object[] row = values.toArray();
+
+        return submit((execution) -> list(row, mapper, execution));
+    }
+
+    /**
+     * Appends the update, and every row added with {@link #addBatch()}, to
+     * the {@link WriteJournal} of the database and returns without waiting
+     * for it to run. Without a journal, when it cannot be written to or when
+     * a value cannot be journaled, it runs as {@link #executeBatchAsync()}
+     * and a failure is logged.
+     */
+    public void executeJournaled() {
+        final WriteJournal journal = database != null ? database.getJournal() : null;
+        final List<Object[]> rows = rows();
+        int appended = 0;
+
+        // An update without parameters
+        if (rows.isEmpty()) {
+            rows.add(new Object[0]);
+        }
+
+        if (journal != null) {
+            try {
+                appended = journal.appendAll(sql, rows);
+            } catch (IllegalArgumentException e) {
+                Log.getMain().warning("Unable to journal a write, it will go straight to the database. Error: %s", e.getMessage());
+            }
+        }
+
+        if (appended < rows.size()) {
+            final List<Object[]> rest = rows.subList(appended, rows.size());
+
+            submit((execution) -> batch(rest, execution)).onFinish((result, error) -> {
+                if (error != null) {
+                    Log.getMain().severe("Unable to run %s writes that were not journaled, they have been lost. Error: %s", rest.size(), error.getMessage());
+                }
+            });
+        }
+    }
+
+    private <T> SparkFuture<T> submit(Call<T> call) {
+        final Execution execution = new Execution();
+        final Spark spark = Spark.getMainInstance();
+
+        // Armed before the body is handed over, so it also covers the wait for a thread and a connection
+        final ScheduledFuture<?> timer = timeout <= 0 ? null : TIMEOUTS.schedule(() -> {
+            execution.fail(new SQLTimeoutException(String.format("The query took longer than %sms", timeout)));
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        final SparkFuture<T> future = executor != null ? SparkFuture.supplyOn(spark, executor, () -> call.execute(execution))
+                                                       : SparkFuture.supplyBlocking(spark, () -> call.execute(execution));
+        final CompletableFuture<T> result = future.toCompletableFuture();
+
+        execution.watch(result);
+        result.whenComplete((value, error) -> {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+
+            if (result.isCancelled()) {
+                execution.cancel();
+            }
+        });
+
+        return future;
+    }
+
+    // *****************************
+    // Execution
+    // *****************************
+
+    private List<Object[]> rows() {
+        if (!values.isEmpty()) {
+            addBatch();
+        }
+
+        return Lists.newArrayList(batch);
+    }
+
+    private int update(Object[] row, Execution execution) throws SQLException {
+        final QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+        final SQLiteWriter.Write<Integer> update = (c) -> {
+            sample.acquired();
+
+            try (PreparedStatement ps = prepare(c, execution)) {
+                try {
+                    bind(ps, row);
+
+                    int changed = ps.executeUpdate();
+
+                    sample.rows(changed);
+                    return changed;
+                } finally {
+                    finish(execution);
+                }
+            }
+        };
+
+        try {
+            int changed;
+
+            if (writer != null) {
+                changed = writer.execute(update);
+            } else {
+                try (Connection c = pool.borrow()) {
+                    changed = update.execute(c);
+                }
+            }
+
+            sample.end(false);
+            return changed;
+        } finally {
+            sample.end(true);
+            invalidate();
+        }
+    }
+
+    private int[] batch(List<Object[]> rows, Execution execution) throws SQLException {
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+
+        final QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+        final SQLiteWriter.Write<int[]> batch = (c) -> {
+            sample.acquired();
+
+            try (PreparedStatement ps = prepare(c, execution)) {
+                try {
+                    for (Object[] row : rows) {
+                        bind(ps, row);
+                        ps.addBatch();
+                    }
+
+                    sample.rows(rows.size());
+                    return ps.executeBatch();
+                } finally {
+                    finish(execution);
+                }
+            }
+        };
+
+        try {
+            int[] result;
+
+            // The writer runs it in a savepoint, so it is all or nothing there too
+            if (writer != null) {
+                result = writer.execute(batch);
+            } else {
+                try (Connection c = pool.borrow()) {
+                    boolean autoCommit = c.getAutoCommit();
+
+                    c.setAutoCommit(false);
+
+                    try {
+                        result = batch.execute(c);
+                        c.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        c.rollback();
+                        throw e;
+                    } finally {
+                        c.setAutoCommit(autoCommit);
+                    }
+                }
+            }
+
+            sample.end(false);
+            return result;
+        } finally {
+            sample.end(true);
+            invalidate();
+        }
+    }
+
+    private <T> T query(Object[] row, ResultHandler<T> handler, Execution execution) throws SQLException {
+        if (cached && cache != null) {
+            return cache.get(sql, row, cacheKey != null ? cacheKey : handler, () -> read(row, handler, execution));
+        }
+
+        return read(row, handler, execution);
+    }
+
+    private <T> T read(Object[] row, ResultHandler<T> handler, Execution execution) throws SQLException {
+        final QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+
+        try {
+            T result;
+
+            try (Connection c = pool.borrow(); PreparedStatement ps = prepare(c, execution)) {
+                sample.acquired();
+
+                try {
+                    bind(ps, row);
+
+                    try (ResultSet rs = ps.executeQuery()) {
+                        result = handler.handle(sample.count(rs));
+                    }
+                } finally {
+                    finish(execution);
+                }
+            }
+
+            sample.end(false);
+            return result;
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    private RowCursor cursor(Object[] row, Execution execution) throws SQLException {
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+        Connection c = borrow(sample);
+        PreparedStatement ps = null;
+
+        sample.acquired();
+
+        try {
+            ps = prepare(c, execution);
+            ps.setFetchSize(fetchSize);
+            bind(ps, row);
+
+            return new RowCursor(c, ps, ps.executeQuery(), sample);
+        } catch (SQLException | RuntimeException e) {
+            finish(execution);
+
+            if (ps != null) {
+                ps.close();
+            }
+
+            c.close();
+            sample.end(true);
+            throw e;
+        }
+    }
+
+    private Connection borrow(QueryMetrics.Sample sample) throws SQLException {
+        try {
+            return pool.borrow();
+        } catch (SQLException | RuntimeException e) {
+            sample.end(true);
+            throw e;
+        }
+    }
+
+    private <T> List<T> list(Object[] row, RowMapper<T> mapper, Execution execution) throws SQLException {
+        if (cached && cache != null) {
+            return cache.get(sql, row, cacheKey != null ? cacheKey : mapper, () -> Collections.unmodifiableList(read(row, mapper, execution)));
+        }
+
+        return read(row, mapper, execution);
+    }
+
+    private <T> List<T> read(Object[] row, RowMapper<T> mapper, Execution execution) throws SQLException {
+        List<T> list = Lists.newArrayList();
+
+        try (RowCursor rows = cursor(row, execution)) {
+            try {
+                while (rows.next()) {
+                    list.add(mapper.map(rows));
+                }
+            } finally {
+                finish(execution);
+            }
+        }
+
+        return list;
+    }
+
+    private PreparedStatement prepare(Connection c, Execution execution) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(sql);
+
+        try {
+            if (timeout > 0) {
+                // Whole seconds, rounded up
+                ps.setQueryTimeout((int) ((timeout + 999) / 1000));
+            }
+
+            if (execution != null) {
+                execution.start(ps);
+            }
+        } catch (SQLException e) {
+            ps.close();
+            throw e;
+        }
+
+        return ps;
+    }
+
+    private static void finish(Execution execution) {
+        if (execution != null) {
+            execution.finish();
+        }
+    }
+
+    private void invalidate() {
+        // Even when it failed, part of it may have been written
+        if (database != null) {
+            database.invalidate(sql);
+        }
+    }
+
+    /**
+     * Sets parameters on a statement, converting the types JDBC drivers do
+     * not agree on
+     */
+    public static void bind(PreparedStatement ps, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+
+            if (value == null) {
+                ps.setNull(i + 1, Types.NULL);
+            } else if (value instanceof UUID) {
+                ps.setString(i + 1, value.toString());
+            } else if (value instanceof Enum) {
+                ps.setString(i + 1, ((Enum) value).name());
+            } else if (value.getClass() == Date.class) {
+                ps.setTimestamp(i + 1, new Timestamp(((Date) value).getTime()));
+            } else {
+                ps.setObject(i + 1, value);
+            }
+        }
+    }
+
+    private static interface Call<T> {
+        public T execute(Execution execution) throws SQLException;
+    }
+
+    /**
+     * The statement an async call is running, so it can be cancelled
+     */
+    private static final class Execution {
+        private Statement statement;
+        private CompletableFuture<?> result;
+        private SQLException failure;
+        private boolean cancelled = false;
+
+        private synchronized void start(Statement statement) throws SQLException {
+            if (cancelled) {
+                throw failure != null ? failure : new SQLException("The query was cancelled");
+            }
+
+            this.statement = statement;
+        }
+
+        // Before the statement is closed, a cached statement may be running someone else's query next
+        private synchronized void finish() {
+            this.statement = null;
+        }
+
+        // The future of the call, failed right away if the call already failed
+        private synchronized void watch(CompletableFuture<?> result) {
+            this.result = result;
+
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            }
+        }
+
+        private synchronized void fail(SQLException failure) {
+            if (cancelled || (result != null && result.isDone())) {
+                return;
+            }
+
+            this.failure = failure;
+
+            if (result != null) {
+                result.completeExceptionally(failure);
+            }
+
+            cancel();
+        }
+
+        private synchronized void cancel() {
+            this.cancelled = true;
+
+            if (statement != null) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) { } // Already finished
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.ExecutorNoArgs;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.Getter;
+
+/**
+ * Caches the results of queries marked with {@link Query#cached()}, keyed
+ * by their SQL, bound values and the handler that reads the rows, or the key
+ * given to {@link Query#cached(Object)}.
+ *
+ * Results are dropped after {@link Settings#ttl} and the least recently
+ * used are dropped past {@link Settings#maximumSize}. Updates made through
+ * the same {@link codes.goblom.spark.misc.Database} drop every result read
+ * from a table they wrote to. Writes that do not go through it, from
+ * another server for example, are only seen once results expire.
+ *
+ * When several threads miss on the same query at once only one of them
+ * runs it, the others wait for its result.
+ *
+ * Tables are found by looking for the names after {@code FROM},
+ * {@code JOIN}, {@code INTO}, {@code UPDATE} and {@code TABLE}. A write
+ * where no table is found drops everything.
+ *
+ * @author Goblom
+ */
+public final class QueryCache {
+
+    // A name, maybe quoted, maybe with a schema in front of it
+    private static final String NAME = "[`\"\\[]?[\\w$]+[`\"\\]]?(?:\\.[`\"\\[]?[\\w$]+[`\"\\]]?)?";
+    private static final Pattern TABLE = Pattern.compile("\\b(?:FROM|JOIN|INTO|UPDATE|TABLE(?:\\s+IF\\s+(?:NOT\\s+)?EXISTS)?)\\s+(" + NAME + "(?:\\s*,\\s*" + NAME + ")*)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+        public long maximumSize = 1000;
+        public long ttl = 30 * 1000;
+
+        /**
+         * Reads the settings under {@code cache} in a config, missing values
+         * are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.maximumSize = cfg.get("cache.max-size", (int) defaults.maximumSize);
+                     s.ttl = cfg.get("cache.ttl-ms", (int) defaults.ttl);
+
+            return s;
+        }
+    }
+
+    @Getter
+    private final Settings settings;
+
+    private final Cache<Key, Entry> cache;
+    private final ConcurrentMap<String, Set<String>> tables = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, AtomicLong> versions = Maps.newConcurrentMap();
+    private final AtomicLong everything = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public QueryCache(Settings settings) {
+        this.settings = settings;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(settings.maximumSize)
+                                 .expireAfterWrite(settings.ttl, TimeUnit.MILLISECONDS)
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * @return hits, misses, loads and evictions
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return times results were dropped because of a write
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Drops every result read from a table the statement writes to
+     */
+    public void invalidate(String sql) {
+        Set<String> written = tablesOf(sql);
+
+        if (written.isEmpty()) {
+            invalidateAll();
+            return;
+        }
+
+        invalidations.incrementAndGet();
+
+        // Bumped first so results still being read are not kept
+        for (String table : written) {
+            versions.computeIfAbsent(table, (t) -> new AtomicLong()).incrementAndGet();
+        }
+
+        cache.asMap().keySet().removeIf((key) -> !Collections.disjoint(key.tables, written));
+    }
+
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        everything.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * @param reader what turns the rows into the result, or a key the caller
+     * gave for it. Results are only shared between calls with an equal one,
+     * a lambda that captures something is a new object every call.
+     */
+    <T> T get(String sql, Object[] values, Object reader, ExecutorNoArgs<T, SQLException> loader) throws SQLException {
+        final Key key = new Key(sql, values, reader, tablesOf(sql));
+
+        try {
+            Entry entry = cache.get(key, () -> {
+                long version = version(key.tables);
+
+                return new Entry(loader.execute(), version);
+            });
+
+            // Something was written while it was read, let this caller have it but nobody else
+            if (entry.version != version(key.tables)) {
+                cache.asMap().remove(key, entry);
+            }
+
+            return (T) entry.value;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+
+            throw new SQLException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private long version(Set<String> tables) {
+        long version = everything.get();
+
+        for (String table : tables) {
+            AtomicLong v = versions.get(table);
+
+            if (v != null) {
+                version += v.get();
+            }
+        }
+
+        return version;
+    }
+
+    private Set<String> tablesOf(String sql) {
+        Set<String> found = tables.get(sql);
+
+        if (found != null) {
+            return found;
+        }
+
+        found = parseTables(sql);
+
+        // Only likely to fill up when values are formatted into the SQL
+        if (tables.size() >= 10000) {
+            tables.clear();
+        }
+
+        tables.putIfAbsent(sql, found);
+
+        return found;
+    }
+
+    /**
+     * @return the lower case names of the tables a statement reads or
+     * writes, without their schema
+     */
+    static Set<String> parseTables(String sql) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        Matcher matcher = TABLE.matcher(sql);
+
+        while (matcher.find()) {
+            for (String name : matcher.group(1).split(",")) {
+                name = name.trim().replaceAll("[`\"\\[\\]]", "").toLowerCase();
+
+                // Without the schema, `db`.`table` and table are the same table
+                builder.add(name.substring(name.lastIndexOf('.') + 1));
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final Object[] values;
+        private final Object reader;
+        private final Set<String> tables;
+        private final int hash;
+
+        private Key(String sql, Object[] values, Object reader, Set<String> tables) {
+            this.sql = sql;
+            this.values = values;
+            this.reader = reader;
+            this.tables = tables;
+            this.hash = (sql.hashCode() * 31 + Arrays.hashCode(values)) * 31 + reader.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return hash == other.hash && reader.equals(other.reader) && sql.equals(other.sql) && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long version;
+
+        private Entry(Object value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.MainSparkConfigs;
+import codes.goblom.spark.internals.commands.SparkCommand;
+import codes.goblom.spark.internals.commands.defaults.DatabaseCommand;
+import codes.goblom.spark.internals.tools.Histogram;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Timing of every statement run through a
+ * {@link codes.goblom.spark.misc.Database}, on by default. Turn it off with
+ * {@code database.metrics: false} in the core config or
+ * {@code /spark db off}.
+ *
+ * Stats are kept per SQL template, the SQL with its literals replaced by
+ * {@code ?}: how often it ran, how long it took including the wait for a
+ * connection, how long it held the connection and how many rows it read or
+ * changed.
+ *
+ * Statements that take longer than {@code database.slow-query-ms} (200 by
+ * default) are logged and kept for {@code /spark db slow}.
+ *
+ * @author Goblom
+ */
+public final class QueryMetrics {
+
+    static {
+        SparkCommand.registerCommand(new DatabaseCommand());
+    }
+
+    private static final int MAX_TEMPLATES = 1000;
+    private static final int MAX_SLOW = 20;
+    private static final String OTHER = "(other)";
+
+    private static final Pattern STRING = Pattern.compile("'(?:[^'\\\\]|''|\\\\.)*'");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w$.])-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+    private static final Pattern LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern ROWS = Pattern.compile("\\(\\?\\)(?:\\s*,\\s*\\(\\?\\))+");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    private static final Map<String, Stats> STATS = Maps.newConcurrentMap();
+    private static final Map<String, String> TEMPLATES = Maps.newConcurrentMap();
+    private static final Deque<Slow> SLOW = new ArrayDeque<>();
+
+    private static volatile Boolean enabled = null;
+    private static volatile long threshold = -1;
+
+    private QueryMetrics() { }
+
+    public static boolean isEnabled() {
+        Boolean b = enabled;
+
+        if (b == null) {
+            enabled = b = MainSparkConfigs.CORE.get("database.metrics", true);
+        }
+
+        return b;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        QueryMetrics.enabled = enabled;
+    }
+
+    /**
+     * @return milliseconds after which a statement is logged as slow
+     */
+    public static long getSlowThreshold() {
+        long t = threshold;
+
+        if (t < 0) {
+            threshold = t = MainSparkConfigs.CORE.get("database.slow-query-ms", 200);
+        }
+
+        return t;
+    }
+
+    public static void setSlowThreshold(long millis) {
+        QueryMetrics.threshold = millis;
+    }
+
+    public static void reset() {
+        STATS.clear();
+
+        synchronized (SLOW) {
+            SLOW.clear();
+        }
+    }
+
+    /**
+     * @return the stats of every template, most total time first
+     */
+    public static List<Stats> getStats() {
+        List<Stats> list = Lists.newArrayList(STATS.values());
+                    list.sort((a, b) -> Long.compare(b.time.getTotal(), a.time.getTotal()));
+
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return the last slow statements, newest first
+     */
+    public static List<Slow> getSlow() {
+        synchronized (SLOW) {
+            return Collections.unmodifiableList(Lists.newArrayList(SLOW));
+        }
+    }
+
+    /**
+     * Starts timing a statement, call this before borrowing the connection
+     */
+    public static Sample begin(String sql) {
+        return new Sample(isEnabled() ? sql : null);
+    }
+
+    /**
+     * @return the SQL with its literals replaced by {@code ?}, lists of
+     * values and rows collapsed and whitespace squeezed
+     */
+    public static String normalize(String sql) {
+        String template = TEMPLATES.get(sql);
+
+        if (template != null) {
+            return template;
+        }
+
+        template = STRING.matcher(sql).replaceAll("?");
+        template = NUMBER.matcher(template).replaceAll("?");
+        template = LIST.matcher(template).replaceAll("(?)");
+        template = ROWS.matcher(template).replaceAll("(?)");
+        template = SPACE.matcher(template).replaceAll(" ").trim();
+
+        // Only likely to fill up when values are formatted into the SQL, which the above undoes
+        if (TEMPLATES.size() >= 10000) {
+            TEMPLATES.clear();
+        }
+
+        TEMPLATES.putIfAbsent(sql, template);
+
+        return template;
+    }
+
+    private static void record(Sample sample, long now, boolean failed) {
+        String template = normalize(sample.sql);
+        Stats stats = STATS.get(template);
+
+        if (stats == null) {
+            if (STATS.size() >= MAX_TEMPLATES) {
+                template = OTHER;
+            }
+
+            STATS.putIfAbsent(template, new Stats(template));
+            stats = STATS.get(template);
+        }
+
+        long time = now - sample.started;
+
+        stats.time.record(time);
+        stats.held.record(sample.acquired == 0 ? 0 : now - sample.acquired);
+
+        if (sample.rows > 0) {
+            stats.rows.addAndGet(sample.rows);
+        }
+
+        if (failed) {
+            stats.failures.incrementAndGet();
+        }
+
+        long millis = time / 1000000;
+
+        if (millis >= getSlowThreshold()) {
+            Slow slow = new Slow(template, millis, sample.rows, System.currentTimeMillis());
+
+            synchronized (SLOW) {
+                SLOW.addFirst(slow);
+
+                if (SLOW.size() > MAX_SLOW) {
+                    SLOW.removeLast();
+                }
+            }
+
+            Log.getMain().warning("Slow query took %sms (%s rows): %s", millis, sample.rows, template);
+        }
+    }
+
+    /**
+     * A statement being timed, used by one thread at a time
+     */
+    public static final class Sample {
+        private final String sql;
+        private final long started;
+
+        private long acquired = 0;
+        private long rows = 0;
+        private boolean finished = false;
+
+        private Sample(String sql) {
+            this.sql = sql;
+            this.started = sql == null ? 0 : System.nanoTime();
+        }
+
+        /**
+         * The statement has a connection
+         */
+        public void acquired() {
+            if (sql != null && acquired == 0) {
+                this.acquired = System.nanoTime();
+            }
+        }
+
+        /**
+         * Rows read or changed by the statement
+         */
+        public void rows(long rows) {
+            this.rows += rows;
+        }
+
+        /**
+         * Counts the rows read from a result set that is handed to code
+         * that walks it itself
+         */
+        public ResultSet count(ResultSet rs) {
+            if (sql == null) {
+                return rs;
+            }
+
+            return (ResultSet) Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                try {
+                    Object result = method.invoke(rs, args);
+
+                    if (result == Boolean.TRUE && method.getName().equals("next")) {
+                        this.rows++;
+                    }
+
+                    return result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+        }
+
+        /**
+         * The connection has been given back, only the first call counts
+         */
+        public void end(boolean failed) {
+            if (sql == null || finished) {
+                return;
+            }
+
+            this.finished = true;
+            record(this, System.nanoTime(), failed);
+        }
+    }
+
+    @RequiredArgsConstructor
+    public static final class Stats {
+        @Getter
+        private final String template;
+
+        /**
+         * Nanoseconds from asking for a connection to giving it back
+         */
+        @Getter
+        private final Histogram time = new Histogram();
+
+        /**
+         * Nanoseconds the connection was held for
+         */
+        @Getter
+        private final Histogram held = new Histogram();
+
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static final class Slow {
+        private final String template;
+        private final long millis;
+        private final long rows;
+        private final long at;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import com.google.common.collect.Maps;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks the rows of a query one at a time without reading them all into
+ * memory. Columns are read by index, starting at 1, and the typed getters
+ * return primitives.
+ *
+ * The cursor holds a pooled connection until it is closed, so it should
+ * always be used with try-with-resources.
+ *
+ * <pre>
+ * try (RowCursor rows = db.query("SELECT uuid, kills FROM stats").fetchSize(500).cursor()) {
+ *     while (rows.next()) {
+ *         UUID uuid = rows.getUUID(1);
+ *         int kills = rows.getInt(2);
+ *     }
+ * }
+ * </pre>
+ *
+ * How many rows are read from the database at once is up to
+ * {@link Query#fetchSize(int)} and the driver. MySQL ignores it unless
+ * {@code useCursorFetch=true} is set on the connection, or streams one row
+ * at a time with a fetch size of {@link Integer#MIN_VALUE}.
+ *
+ * @author Goblom
+ */
+public final class RowCursor implements AutoCloseable {
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet rs;
+    private final QueryMetrics.Sample sample;
+
+    private Map<String, Integer> columns;
+    private boolean closed = false;
+
+    RowCursor(Connection connection, PreparedStatement statement, ResultSet rs, QueryMetrics.Sample sample) {
+        this.connection = connection;
+        this.statement = statement;
+        this.rs = rs;
+        this.sample = sample;
+    }
+
+    /**
+     * Moves to the next row, the cursor closes itself after the last one
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() throws SQLException {
+        if (closed) {
+            return false;
+        }
+
+        if (rs.next()) {
+            sample.rows(1);
+            return true;
+        }
+
+        close();
+        return false;
+    }
+
+    public int getInt(int column) throws SQLException {
+        return rs.getInt(column);
+    }
+
+    public long getLong(int column) throws SQLException {
+        return rs.getLong(column);
+    }
+
+    public double getDouble(int column) throws SQLException {
+        return rs.getDouble(column);
+    }
+
+    public float getFloat(int column) throws SQLException {
+        return rs.getFloat(column);
+    }
+
+    public boolean getBoolean(int column) throws SQLException {
+        return rs.getBoolean(column);
+    }
+
+    public String getString(int column) throws SQLException {
+        return rs.getString(column);
+    }
+
+    public byte[] getBytes(int column) throws SQLException {
+        return rs.getBytes(column);
+    }
+
+    public Object getObject(int column) throws SQLException {
+        return rs.getObject(column);
+    }
+
+    /**
+     * @return the column read as a string, or null
+     */
+    public UUID getUUID(int column) throws SQLException {
+        String value = rs.getString(column);
+
+        return value == null ? null : UUID.fromString(value);
+    }
+
+    /**
+     * @return the column read by {@link Enum#name()}, or null
+     */
+    public <E extends Enum<E>> E getEnum(int column, Class<E> type) throws SQLException {
+        String value = rs.getString(column);
+
+        return value == null ? null : Enum.valueOf(type, value);
+    }
+
+    /**
+     * @return true if the last column read was SQL NULL, the primitive
+     * getters return 0 or false for those
+     */
+    public boolean wasNull() throws SQLException {
+        return rs.wasNull();
+    }
+
+    public int getColumnCount() throws SQLException {
+        return rs.getMetaData().getColumnCount();
+    }
+
+    /**
+     * Looks up the index of a column by its name or label. Look it up once
+     * before walking the rows rather than for every row.
+     *
+     * @return the index of the column, or -1 if there is no such column
+     */
+    public int indexOf(String column) throws SQLException {
+        if (columns == null) {
+            ResultSetMetaData meta = rs.getMetaData();
+            Map<String, Integer> map = Maps.newHashMap();
+
+            for (int i = meta.getColumnCount(); i >= 1; i--) {
+                map.put(meta.getColumnLabel(i).toLowerCase(), i);
+            }
+
+            this.columns = map;
+        }
+
+        Integer index = columns.get(column.toLowerCase());
+
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Maps the current row
+     */
+    public <T> T map(RowMapper<T> mapper) throws SQLException {
+        return mapper.map(this);
+    }
+
+    /**
+     * A lazy stream of the remaining rows. The cursor is closed when the
+     * last row has been read or the stream is closed, whichever comes first.
+     *
+     * A {@link SQLException} while reading is thrown as a
+     * {@link RuntimeException} caused by it.
+     */
+    public <T> Stream<T> stream(RowMapper<T> mapper) {
+        Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (!next()) {
+                        return false;
+                    }
+
+                    action.accept(mapper.map(RowCursor.this));
+                    return true;
+                } catch (SQLException e) {
+                    close();
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(rows, false).onClose(this::close);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        this.closed = true;
+
+        try {
+            rs.close();
+        } catch (SQLException e) { } // Closed with its statement
+
+        try {
+            statement.close();
+        } catch (SQLException e) { }
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        sample.end(false);
+    }
+}
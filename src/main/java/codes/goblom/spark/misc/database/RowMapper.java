@@ -0,0 +1,22 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a {@link RowCursor} into an object
+ *
+ * <pre>
+ * RowMapper&lt;Stats&gt; mapper = (row) -&gt; new Stats(row.getUUID(1), row.getInt(2));
+ * </pre>
+ *
+ * @author Goblom
+ */
+public interface RowMapper<T> {
+    
+    public T map(RowCursor row) throws SQLException;
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.ExecutorNoArgs;
+import com.google.common.collect.Lists;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Every write to an SQLite database goes through the one connection owned
+ * by this writer's thread, so writers never fight over the file lock.
+ *
+ * Writes are queued and run in groups, everything queued when the thread
+ * gets to it is committed in a single transaction. Each write runs inside
+ * a savepoint so one that fails does not undo the others.
+ *
+ * The connection given to a write is only valid while it runs. Closing it
+ * does nothing, and commit, rollback and {@code setAutoCommit} are not
+ * allowed as the writer handles the transaction.
+ *
+ * The write-ahead log is checkpointed every
+ * {@link Settings#checkpointInterval} from the writer thread and truncated
+ * when the writer is closed.
+ *
+ * @author Goblom
+ */
+public final class SQLiteWriter implements AutoCloseable {
+
+    public static interface Write<T> {
+        public T execute(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+
+        /**
+         * Size of the pool of read only connections
+         */
+        public int readers = 4;
+
+        /**
+         * Most writes committed in one transaction
+         */
+        public int maxGroup = 256;
+
+        public long checkpointInterval = 60 * 1000;
+        public int busyTimeout = 5000;
+
+        /**
+         * OFF, NORMAL, FULL or EXTRA. NORMAL is safe with WAL, the last
+         * commits can only be lost if the machine loses power.
+         */
+        public String synchronous = "NORMAL";
+        public long mmapSize = 256L * 1024L * 1024L;
+        public int cacheSizeKb = 16 * 1024;
+
+        /**
+         * Reads the settings under {@code sqlite} in a config, missing
+         * values are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.readers = cfg.get("sqlite.readers", defaults.readers);
+                     s.maxGroup = cfg.get("sqlite.max-group", defaults.maxGroup);
+                     s.checkpointInterval = cfg.get("sqlite.checkpoint-interval-ms", (int) defaults.checkpointInterval);
+                     s.busyTimeout = cfg.get("sqlite.busy-timeout-ms", defaults.busyTimeout);
+                     s.synchronous = cfg.get("sqlite.synchronous", defaults.synchronous);
+                     s.mmapSize = cfg.get("sqlite.mmap-size-mb", (int) (defaults.mmapSize / 1024 / 1024)) * 1024L * 1024L;
+                     s.cacheSizeKb = cfg.get("sqlite.cache-size-kb", defaults.cacheSizeKb);
+
+            return s;
+        }
+    }
+
+    /**
+     * Opens a connection to an SQLite database and applies the settings to
+     * it. The first writable connection switches the database to WAL, which
+     * it stays in.
+     */
+    public static Connection open(String url, Settings settings, boolean readOnly) throws SQLException {
+        String synchronous = settings.synchronous.toUpperCase();
+
+        if (!synchronous.matches("OFF|NORMAL|FULL|EXTRA")) {
+            synchronous = "NORMAL";
+        }
+
+        Connection connection = DriverManager.getConnection(url);
+
+        try (Statement st = connection.createStatement()) {
+            st.execute("PRAGMA busy_timeout = " + settings.busyTimeout);
+
+            if (!readOnly) {
+                st.execute("PRAGMA journal_mode = WAL");
+            }
+
+            st.execute("PRAGMA synchronous = " + synchronous);
+            st.execute("PRAGMA mmap_size = " + settings.mmapSize);
+            st.execute("PRAGMA cache_size = -" + settings.cacheSizeKb);
+            st.execute("PRAGMA temp_store = MEMORY");
+
+            if (readOnly) {
+                st.execute("PRAGMA query_only = ON");
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+
+        return connection;
+    }
+
+    private static final Pending<Void> STOP = new Pending<>(null);
+
+    private final ExecutorNoArgs<Connection, SQLException> factory;
+
+    @Getter
+    private final Settings settings;
+
+    private final Connection connection;
+    private final Connection managed;
+    private final StatementCache statements;
+    private final LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private volatile boolean closed = false;
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    /**
+     * @param factory opens a writable connection, see
+     * {@link #open(String, Settings, boolean)}
+     */
+    public SQLiteWriter(String name, ExecutorNoArgs<Connection, SQLException> factory, Settings settings) throws SQLException {
+        this.factory = factory;
+        this.settings = settings;
+        this.connection = factory.execute();
+        this.connection.setAutoCommit(false);
+        this.statements = new StatementCache(connection, 64);
+        this.managed = (Connection) Proxy.newProxyInstance(SQLiteWriter.class.getClassLoader(), new Class<?>[] { Connection.class }, new Managed());
+
+        this.thread = new Thread(this::run, "Spark SQLite Writer - " + name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a write
+     */
+    public <T> CompletableFuture<T> submit(Write<T> write) {
+        Pending<T> pending = new Pending<>(write);
+
+        if (closed) {
+            pending.future.completeExceptionally(new SQLException("The SQLite writer is closed"));
+        } else if (Thread.currentThread() == thread) {
+            // Already inside a write, run it as part of it
+            try {
+                pending.future.complete(write.execute(managed));
+            } catch (Throwable t) {
+                pending.future.completeExceptionally(t);
+            }
+        } else {
+            queue.offer(pending);
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Queues a write and waits for it to be committed
+     */
+    public <T> T execute(Write<T> write) throws SQLException {
+        try {
+            return submit(write).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Opens a writable connection that is not managed by the writer, the
+     * caller is responsible for closing it. Its writes wait for the writer
+     * to finish its transaction.
+     */
+    public Connection openUnmanaged() throws SQLException {
+        return factory.execute();
+    }
+
+    /**
+     * @return writes waiting for the writer
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return transactions committed, writes / commits is the average group
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Finishes the queued writes and waits for the writer to stop
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        this.closed = true;
+        queue.offer(STOP);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        failQueued();
+    }
+
+    private void run() {
+        final long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, settings.checkpointInterval));
+        long nextCheckpoint = System.nanoTime() + interval;
+        List<Pending<?>> group = Lists.newArrayListWithCapacity(settings.maxGroup);
+        boolean stop = false;
+
+        while (!stop) {
+            Pending<?> first;
+
+            try {
+                first = queue.poll(Math.max(0, nextCheckpoint - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (first != null) {
+                group.add(first);
+                queue.drainTo(group, Math.max(0, settings.maxGroup - 1));
+
+                stop = group.remove(STOP);
+                commit(group);
+                group.clear();
+            }
+
+            if (System.nanoTime() - nextCheckpoint >= 0) {
+                checkpoint("PASSIVE");
+                nextCheckpoint = System.nanoTime() + interval;
+            }
+        }
+
+        failQueued();
+        checkpoint("TRUNCATE");
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Anything submitted while stopping
+    private void failQueued() {
+        for (Pending<?> pending; (pending = queue.poll()) != null;) {
+            pending.future.completeExceptionally(new SQLException("The SQLite writer is closed"));
+        }
+    }
+
+    private void commit(List<Pending<?>> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+
+        for (Pending<?> pending : group) {
+            pending.run(connection, managed);
+        }
+
+        try {
+            connection.commit();
+            commits.incrementAndGet();
+            writes.addAndGet(group.size());
+
+            for (Pending<?> pending : group) {
+                pending.finish(null);
+            }
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+            Log.getMain().severe("Unable to commit %s SQLite writes. Error: %s", group.size(), e.getMessage());
+
+            try {
+                connection.rollback();
+            } catch (SQLException ex) { } // Nothing left to undo
+
+            for (Pending<?> pending : group) {
+                pending.finish(e);
+            }
+        } finally {
+            statements.release();
+        }
+    }
+
+    private void checkpoint(String mode) {
+        try (Statement st = connection.createStatement()) {
+            st.execute("PRAGMA wal_checkpoint(" + mode + ")");
+            checkpoints.incrementAndGet();
+        } catch (SQLException e) {
+            Log.getMain().warning("Unable to checkpoint the SQLite write-ahead log. Error: %s", e.getMessage());
+        }
+    }
+
+    private final class Managed implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    return null;
+                case "isClosed":
+                    return closed && !thread.isAlive();
+                case "commit":
+                case "rollback":
+                case "setAutoCommit":
+                    throw new SQLException("The transaction of a write is managed by the SQLite writer");
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "SQLiteWriter[" + connection + "]";
+            }
+
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return statements.prepare((Connection) proxy, (String) args[0]);
+            }
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static final class Pending<T> {
+        private final Write<T> write;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private T result;
+        private Throwable error;
+
+        private Pending(Write<T> write) {
+            this.write = write;
+        }
+
+        private void run(Connection connection, Connection managed) {
+            Savepoint savepoint = null;
+
+            try {
+                savepoint = connection.setSavepoint();
+                this.result = write.execute(managed);
+                connection.releaseSavepoint(savepoint);
+            } catch (Throwable t) {
+                this.error = t;
+
+                try {
+                    if (savepoint != null) {
+                        connection.rollback(savepoint);
+                        connection.releaseSavepoint(savepoint);
+                    }
+                } catch (SQLException e) { } // Undone with the rest of the transaction
+            }
+        }
+
+        private void finish(SQLException failed) {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else if (failed != null) {
+                future.completeExceptionally(failed);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.misc.Database;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Tables and columns of a database, read from {@link DatabaseMetaData} the
+ * first time they are asked for and kept until DDL is run through the same
+ * {@link Database}.
+ *
+ * Row counts are kept for {@link #ROW_COUNT_TTL} milliseconds, or until
+ * something is written to the table through the same database. Approximate
+ * counts come from {@code information_schema} on MySQL and
+ * {@code sqlite_stat1} on SQLite (only there after {@code ANALYZE}), and
+ * fall back to {@code COUNT(*)} when neither has one.
+ *
+ * @author Goblom
+ */
+public final class Schema {
+
+    public static final long ROW_COUNT_TTL = 30 * 1000;
+
+    private static final Pattern DDL = Pattern.compile("^\\s*(?:CREATE|ALTER|DROP|RENAME|TRUNCATE)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final ConnectionPool pool;
+    private final Database.Type type;
+
+    private volatile Set<String> tables;
+    private final ConcurrentMap<String, Set<String>> columns = Maps.newConcurrentMap();
+    private final Cache<String, Long> exactCounts;
+    private final Cache<String, Long> approximateCounts;
+
+    public Schema(ConnectionPool pool, Database.Type type) {
+        this.pool = pool;
+        this.type = type;
+        this.exactCounts = CacheBuilder.newBuilder().expireAfterWrite(ROW_COUNT_TTL, TimeUnit.MILLISECONDS).build();
+        this.approximateCounts = CacheBuilder.newBuilder().expireAfterWrite(ROW_COUNT_TTL, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * @return the names of every table and view
+     */
+    public Set<String> getTables() throws SQLException {
+        Set<String> found = tables;
+
+        if (found != null) {
+            return found;
+        }
+
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+
+        try (Connection c = pool.borrow(); ResultSet rs = c.getMetaData().getTables(c.getCatalog(), null, "%", null)) {
+            while (rs.next()) {
+                builder.add(rs.getString("TABLE_NAME"));
+            }
+        }
+
+        this.tables = found = builder.build();
+        return found;
+    }
+
+    /**
+     * @return the names of the columns of a table in order, empty if there
+     * is no such table
+     */
+    public Set<String> getColumns(String table) throws SQLException {
+        String key = table.toLowerCase();
+        Set<String> found = columns.get(key);
+
+        if (found != null) {
+            return found;
+        }
+
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+
+        try (Connection c = pool.borrow(); ResultSet rs = c.getMetaData().getColumns(c.getCatalog(), null, table, "%")) {
+            while (rs.next()) {
+                // _ in the name is a wildcard
+                if (rs.getString("TABLE_NAME").equalsIgnoreCase(table)) {
+                    builder.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+        }
+
+        found = builder.build();
+        columns.put(key, found);
+
+        return found;
+    }
+
+    /**
+     * @param approximate allow an estimate instead of counting every row
+     */
+    public long getRowCount(String table, boolean approximate) throws SQLException {
+        String key = table.toLowerCase();
+        Cache<String, Long> counts = approximate ? approximateCounts : exactCounts;
+        Long count = counts.getIfPresent(key);
+
+        if (count != null) {
+            return count;
+        }
+
+        count = approximate ? estimate(table) : -1;
+
+        if (count < 0) {
+            count = count(table);
+        }
+
+        counts.put(key, count);
+        return count;
+    }
+
+    /**
+     * Called with every statement run through the database, DDL drops
+     * everything and other writes drop the row counts of their tables
+     */
+    public void invalidate(String sql) {
+        if (DDL.matcher(sql).find()) {
+            invalidateAll();
+            return;
+        }
+
+        if (exactCounts.size() == 0 && approximateCounts.size() == 0) {
+            return;
+        }
+
+        Set<String> written = QueryCache.parseTables(sql);
+
+        if (written.isEmpty()) {
+            exactCounts.invalidateAll();
+            approximateCounts.invalidateAll();
+        } else {
+            exactCounts.invalidateAll(written);
+            approximateCounts.invalidateAll(written);
+        }
+    }
+
+    public void invalidateAll() {
+        this.tables = null;
+        columns.clear();
+        exactCounts.invalidateAll();
+        approximateCounts.invalidateAll();
+    }
+
+    private long count(String table) throws SQLException {
+        final String sql = "SELECT COUNT(*) FROM " + Database.quote(table);
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+
+        try (Connection c = pool.borrow(); Statement st = c.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            sample.acquired();
+
+            long count = rs.next() ? rs.getLong(1) : 0;
+
+            sample.end(false);
+            return count;
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    /**
+     * @return -1 if there is no estimate
+     */
+    private long estimate(String table) {
+        final String sql;
+
+        switch (type) {
+            case MySQL:
+                sql = "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+                break;
+            case SQLite:
+                // The first number of any index on the table is its row count
+                sql = "SELECT stat FROM sqlite_stat1 WHERE tbl = ? LIMIT 1";
+                break;
+            default:
+                return -1;
+        }
+
+        try (Connection c = pool.borrow(); PreparedStatement ps = c.prepareStatement(sql)) {
+            ps.setString(1, table);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getString(1) == null) {
+                    return -1;
+                }
+
+                String value = rs.getString(1).trim();
+                int space = value.indexOf(' ');
+
+                return Long.parseLong(space < 0 ? value : value.substring(0, space));
+            }
+        } catch (SQLException | NumberFormatException e) {
+            // No sqlite_stat1 until ANALYZE has been run
+            return -1;
+        }
+    }
+}
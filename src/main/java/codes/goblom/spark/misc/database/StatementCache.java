@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The prepared statements of a single pooled connection, keyed by their SQL
+ * and dropped least recently used first.
+ *
+ * Closing a statement handed out by {@link #prepare(Connection, String)}
+ * only clears its parameters so the next {@code prepareStatement} with the
+ * same SQL on the same connection skips parsing it again.
+ *
+ * Only ever used by whoever has the connection borrowed, so it is not
+ * thread safe.
+ *
+ * @author Goblom
+ */
+final class StatementCache {
+
+    private final Connection connection;
+    private final Map<String, Cached> statements;
+
+    StatementCache(Connection connection, int size) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, Cached>(16, 0.75F, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                if (size() <= size) {
+                    return false;
+                }
+
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param owner the pooled connection, returned by the statements
+     * {@code getConnection()}
+     */
+    PreparedStatement prepare(Connection owner, String sql) throws SQLException {
+        Cached cached = statements.get(sql);
+
+        if (cached != null && cached.statement.isClosed()) {
+            statements.remove(sql);
+            cached = null;
+        }
+
+        if (cached == null) {
+            cached = new Cached(connection.prepareStatement(sql));
+            statements.put(sql, cached);
+        } else if (cached.inUse) {
+            // The same SQL twice at once on one connection, the second one is not cached
+            return connection.prepareStatement(sql);
+        }
+
+        cached.inUse = true;
+
+        return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new Handle(cached, owner));
+    }
+
+    /**
+     * Called when the connection goes back to the pool, statements the
+     * borrower forgot to close can be used again
+     */
+    void release() {
+        for (Cached cached : statements.values()) {
+            if (cached.inUse) {
+                cached.free();
+            }
+        }
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    private static final class Cached {
+        private final PreparedStatement statement;
+
+        private boolean inUse = false;
+        private boolean evicted = false;
+
+        // Bumped every time the statement is freed so old handles stop working
+        private int generation = 0;
+
+        private Cached(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        private void free() {
+            this.inUse = false;
+            this.generation++;
+
+            try {
+                if (evicted) {
+                    statement.close();
+                } else {
+                    statement.clearParameters();
+                    statement.clearBatch();
+
+                    // Do not leave them for whoever uses it next
+                    statement.setFetchSize(0);
+                    statement.setQueryTimeout(0);
+                }
+            } catch (SQLException e) { } // Closed with its connection
+        }
+
+        private void evict() {
+            this.evicted = true;
+
+            if (!inUse) {
+                free();
+            }
+        }
+    }
+
+    private static final class Handle implements InvocationHandler {
+        private final Cached cached;
+        private final Connection owner;
+        private final int generation;
+
+        private Handle(Cached cached, Connection owner) {
+            this.cached = cached;
+            this.owner = owner;
+            this.generation = cached.generation;
+        }
+
+        private boolean isClosed() {
+            return cached.generation != generation;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!isClosed()) {
+                        cached.free();
+                    }
+
+                    return null;
+                case "isClosed":
+                    return isClosed() || cached.statement.isClosed();
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached[" + cached.statement + "]";
+            }
+
+            if (isClosed()) {
+                throw new SQLException("This statement has been closed");
+            }
+
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.misc.Database;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Statements run on one connection and committed together, see
+ * {@link Database#transaction(Work)}.
+ *
+ * <pre>
+ * db.transaction((tx) -&gt; {
+ *     int coins = tx.query("SELECT coins FROM players WHERE uuid = ?", (rs) -&gt; rs.next() ? rs.getInt(1) : 0, uuid);
+ *
+ *     tx.update("UPDATE players SET coins = ? WHERE uuid = ?", coins - price, uuid);
+ *
+ *     for (ItemStack item : items) {
+ *         tx.addBatch("INSERT INTO purchases (uuid, item) VALUES (?, ?)", uuid, item.getType());
+ *     }
+ *
+ *     return coins - price;
+ * });
+ * </pre>
+ *
+ * Statements added with {@link #addBatch(String, Object...)} are sent as
+ * one JDBC batch, when a different statement is run or the work returns.
+ *
+ * When the database reports lock contention, {@code SQLITE_BUSY}, a
+ * deadlock or a serialization failure, the transaction is rolled back and
+ * the work is run again after a random, growing wait. The work may run more
+ * than once, so it should not do anything that cannot be repeated outside
+ * of the transaction.
+ *
+ * Queries the work runs through the database instead of the transaction
+ * are lent the connection of the transaction, see {@link ConnectionPool}.
+ * So is a transaction started from inside the work, it is committed or
+ * rolled back with the one it was started in.
+ *
+ * @author Goblom
+ */
+public final class Transaction {
+
+    public static interface Work<T> {
+        public T execute(Transaction tx) throws SQLException;
+    }
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+
+        /**
+         * Times the work is run before the error is thrown
+         */
+        public int maxAttempts = 5;
+
+        /**
+         * The longest wait before the second attempt, doubled every attempt
+         */
+        public long backoff = 20;
+        public long maxBackoff = 1000;
+
+        /**
+         * Reads the settings under {@code transaction} in a config, missing
+         * values are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.maxAttempts = cfg.get("transaction.max-attempts", defaults.maxAttempts);
+                     s.backoff = cfg.get("transaction.backoff-ms", (int) defaults.backoff);
+                     s.maxBackoff = cfg.get("transaction.max-backoff-ms", (int) defaults.maxBackoff);
+
+            return s;
+        }
+    }
+
+    private final Connection connection;
+    private final Set<String> written;
+
+    private String batchSql;
+    private final List<Object[]> batchRows = Lists.newArrayList();
+
+    /**
+     * @param written the statements that change something are added to it,
+     * so what they change can be dropped from caches after the commit
+     */
+    private Transaction(Connection connection, Set<String> written) {
+        this.connection = connection;
+        this.written = written;
+    }
+
+    /**
+     * Runs the work in a transaction, trying it again while it fails on lock
+     * contention
+     *
+     * @see Database#transaction(Settings, Work)
+     */
+    public static <T> T execute(Database database, Settings settings, Work<T> work) throws SQLException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return attempt(database, work);
+            } catch (SQLException e) {
+                if (attempt >= settings.maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+
+                try {
+                    Thread.sleep(backoff(settings, attempt));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static <T> T attempt(Database database, Work<T> work) throws SQLException {
+        final Set<String> written = Sets.newLinkedHashSet();
+        final SQLiteWriter writer = database.getWriter();
+
+        try {
+            // The writer runs it in a savepoint and commits it with the rest of its group
+            if (writer != null) {
+                return writer.execute((c) -> new Transaction(c, written).run(work));
+            }
+
+            try (Connection c = database.getPool().borrow()) {
+                boolean autoCommit = c.getAutoCommit();
+
+                // Already inside a transaction on this thread, run it as part of it
+                if (!autoCommit) {
+                    return new Transaction(c, written).run(work);
+                }
+
+                c.setAutoCommit(false);
+
+                Exception failure = null;
+
+                try {
+                    T result = new Transaction(c, written).run(work);
+
+                    c.commit();
+                    return result;
+                } catch (SQLException | RuntimeException e) {
+                    failure = e;
+
+                    // Thrown with the error of the work, not instead of it
+                    try {
+                        c.rollback();
+                    } catch (SQLException ex) {
+                        e.addSuppressed(ex);
+                    }
+
+                    throw e;
+                } finally {
+                    try {
+                        c.setAutoCommit(autoCommit);
+                    } catch (SQLException ex) {
+                        if (failure == null) {
+                            throw ex;
+                        }
+
+                        failure.addSuppressed(ex);
+                    }
+                }
+            }
+        } finally {
+            // After the commit, or whatever read in between would be cached again
+            for (String sql : written) {
+                database.invalidate(sql);
+            }
+        }
+    }
+
+    // Runs the work and whatever it left in the batch
+    private <T> T run(Work<T> work) throws SQLException {
+        T result = work.execute(this);
+
+        flush();
+        return result;
+    }
+
+    /**
+     * The connection of the transaction, do not commit or close it
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the number of rows changed
+     */
+    public int update(String sql, Object... values) throws SQLException {
+        flush();
+
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+                            sample.acquired();
+
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            Query.bind(ps, values);
+
+            int changed = ps.executeUpdate();
+
+            written.add(sql);
+            sample.rows(changed);
+            sample.end(false);
+            return changed;
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    /**
+     * Adds a statement to the batch, it is run with the rest of the batch
+     * when a different statement is run or the work returns. A batch of a
+     * different statement is run first.
+     */
+    public void addBatch(String sql, Object... values) throws SQLException {
+        if (batchSql != null && !batchSql.equals(sql)) {
+            flush();
+        }
+
+        this.batchSql = sql;
+        batchRows.add(values);
+    }
+
+    /**
+     * Runs the same statement for every row as one JDBC batch
+     *
+     * @return the number of rows changed by each row
+     */
+    public int[] executeBatch(String sql, Iterable<Object[]> rows) throws SQLException {
+        for (Object[] row : rows) {
+            addBatch(sql, row);
+        }
+
+        return flush();
+    }
+
+    /**
+     * The result set is closed once the handler returns
+     */
+    public <T> T query(String sql, Query.ResultHandler<T> handler, Object... values) throws SQLException {
+        flush();
+
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+                            sample.acquired();
+
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            Query.bind(ps, values);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                T result = handler.handle(sample.count(rs));
+
+                sample.end(false);
+                return result;
+            }
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    /**
+     * Runs the statements added with {@link #addBatch(String, Object...)}
+     *
+     * @return the number of rows changed by each row, empty if there were
+     * none
+     */
+    public int[] flush() throws SQLException {
+        if (batchRows.isEmpty()) {
+            return new int[0];
+        }
+
+        final String sql = batchSql;
+        final List<Object[]> rows = Lists.newArrayList(batchRows);
+
+        this.batchSql = null;
+        batchRows.clear();
+
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+                            sample.acquired();
+
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                Query.bind(ps, row);
+                ps.addBatch();
+            }
+
+            int[] result = ps.executeBatch();
+
+            written.add(sql);
+            sample.rows(rows.size());
+            sample.end(false);
+            return result;
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    /**
+     * @return true if the error is lock contention that goes away when the
+     * transaction is tried again
+     */
+    public static boolean isRetryable(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+
+            if (!(t instanceof SQLException)) {
+                continue;
+            }
+
+            SQLException sql = (SQLException) t;
+            String state = sql.getSQLState();
+            String message = sql.getMessage() == null ? "" : sql.getMessage();
+
+            // 40001 serialization failure, 40P01 deadlock
+            if (state != null && (state.equals("40001") || state.equals("40P01"))) {
+                return true;
+            }
+
+            // MySQL deadlock and lock wait timeout
+            if (sql.getErrorCode() == 1213 || sql.getErrorCode() == 1205) {
+                return true;
+            }
+
+            // SQLITE_BUSY and SQLITE_LOCKED, the driver does not always set the code
+            if (message.contains("SQLITE_BUSY") || message.contains("SQLITE_LOCKED") || message.contains("database is locked")) {
+                return true;
+            }
+
+            if (sql.getNextException() != null && sql.getNextException() != t.getCause() && isRetryable(sql.getNextException())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param attempt the attempt that failed, starting at 1
+     * @return a random wait up to the backoff for the attempt
+     */
+    private static long backoff(Settings settings, int attempt) {
+        long bound = Math.min(settings.maxBackoff, settings.backoff << Math.min(attempt - 1, 20));
+
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.SparkPlugin;
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.tools.Histogram;
+import codes.goblom.spark.misc.Database;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Getter;
+
+/**
+ * Queues writes and runs them later on a thread of its own, as JDBC batches
+ * inside a single transaction.
+ *
+ * Writes given a key replace any queued write with the same SQL and key, so
+ * a value that changes every tick is only written once per flush.
+ *
+ * <pre>
+ * WriteBehindQueue queue = new WriteBehindQueue(plugin, db, new WriteBehindQueue.Settings());
+ *
+ * queue.writeKeyed("REPLACE INTO stats (uuid, kills) VALUES (?, ?)", uuid, uuid, kills);
+ * </pre>
+ *
+ * A flush starts once {@link Settings#batchSize} writes are queued or
+ * {@link Settings#flushInterval} has passed. When {@link Settings#capacity}
+ * writes are queued new writes wait for a flush, for at most
+ * {@link Settings#offerTimeout}. Writes that fail are queued again, unless
+ * they have been replaced since, and retried on the next flush. A write the
+ * database refuses, a constraint or syntax error, is moved to
+ * {@code rejected-writes.log} in the plugin folder instead of being retried.
+ *
+ * Whatever is left is written when the plugin disables or the database is
+ * closed, whichever comes first.
+ *
+ * @author Goblom
+ */
+public final class WriteBehindQueue implements AutoCloseable {
+
+    private static final String REJECTED = "rejected-writes.log";
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+        public int capacity = 10000;
+        public int batchSize = 500;
+        public long flushInterval = 1000;
+        public long offerTimeout = 5000;
+
+        /**
+         * Reads the settings under {@code write-behind} in a config, missing
+         * values are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.capacity = cfg.get("write-behind.capacity", defaults.capacity);
+                     s.batchSize = cfg.get("write-behind.batch-size", defaults.batchSize);
+                     s.flushInterval = cfg.get("write-behind.flush-interval-ms", (int) defaults.flushInterval);
+                     s.offerTimeout = cfg.get("write-behind.offer-timeout-ms", (int) defaults.offerTimeout);
+
+            return s;
+        }
+    }
+
+    private final SparkPlugin plugin;
+    private final Database database;
+    private final DeadLetters deadLetters;
+
+    @Getter
+    private final Settings settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private LinkedHashMap<Key, Object[]> pending = Maps.newLinkedHashMap();
+    private boolean closed = false;
+
+    private final Thread flusher;
+
+    /**
+     * Nanoseconds taken by each flush
+     */
+    @Getter
+    private final Histogram flushLatency = new Histogram();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public WriteBehindQueue(SparkPlugin plugin, Database database, Settings settings) {
+        this.plugin = plugin;
+        this.database = database;
+        this.deadLetters = new DeadLetters(plugin, new File(plugin.getDataFolder(), REJECTED));
+        this.settings = settings;
+
+        this.flusher = new Thread(this::run, "Spark Write Behind - " + plugin.getName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+
+        // Whichever comes first, the database is usually closed in disable() before closeOnDisable runs
+        plugin.closeOnDisable(this);
+        database.closeFirst(this);
+    }
+
+    /**
+     * Queues a write that is never replaced
+     *
+     * @return false if the queue stayed full or has been closed, the write
+     * was dropped
+     */
+    public boolean write(String sql, Object... values) {
+        return offer(new Key(sql, null), values);
+    }
+
+    /**
+     * Queues a write, replacing a queued write with the same SQL and key
+     *
+     * @return false if the queue stayed full or has been closed, the write
+     * was dropped
+     */
+    public boolean writeKeyed(String sql, Object key, Object... values) {
+        return offer(new Key(sql, key), values);
+    }
+
+    /**
+     * @return writes waiting to be flushed
+     */
+    public int getPending() {
+        lock.lock();
+
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return writes that replaced one that was still queued
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    /**
+     * @return flushes that failed and were retried
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return writes dropped because the queue stayed full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return writes the database refused, see {@code rejected-writes.log}
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Asks for a flush now instead of waiting for the interval
+     */
+    public void flush() {
+        lock.lock();
+
+        try {
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the flush thread and writes whatever is left on the calling
+     * thread. Called when the plugin disables.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            this.closed = true;
+            flushNeeded.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join(settings.flushInterval + settings.offerTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!drain()) {
+            Log.find(plugin).severe("Unable to write %s queued database writes while disabling, they have been lost", getPending());
+        }
+    }
+
+    private boolean offer(Key key, Object[] values) {
+        lock.lock();
+
+        try {
+            if (key.key != null && pending.containsKey(key)) {
+                pending.put(key, values);
+                coalesced.incrementAndGet();
+                written.incrementAndGet();
+                return true;
+            }
+
+            long wait = TimeUnit.MILLISECONDS.toNanos(settings.offerTimeout);
+
+            while (!closed && pending.size() >= settings.capacity) {
+                flushNeeded.signal();
+
+                if (wait <= 0) {
+                    rejected.incrementAndGet();
+                    Log.find(plugin).warning("The database write queue has been full for %sms, a write was dropped", settings.offerTimeout);
+                    return false;
+                }
+
+                wait = notFull.awaitNanos(wait);
+            }
+
+            if (closed) {
+                rejected.incrementAndGet();
+                return false;
+            }
+
+            pending.put(key, values);
+            written.incrementAndGet();
+
+            if (pending.size() >= settings.batchSize) {
+                flushNeeded.signal();
+            }
+
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            lock.lock();
+
+            try {
+                if (!closed && pending.size() < settings.batchSize) {
+                    flushNeeded.await(settings.flushInterval, TimeUnit.MILLISECONDS);
+                }
+
+                if (closed) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            if (!drain()) {
+                // Give the database a moment before trying again
+                try {
+                    Thread.sleep(settings.flushInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far
+     *
+     * @return false if the writes failed and were queued again
+     */
+    private synchronized boolean drain() {
+        LinkedHashMap<Key, Object[]> batch;
+
+        lock.lock();
+
+        try {
+            if (pending.isEmpty()) {
+                return true;
+            }
+
+            batch = pending;
+            pending = Maps.newLinkedHashMap();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            execute(batch);
+
+            flushed.addAndGet(batch.size());
+            flushLatency.record(System.nanoTime() - start);
+            return true;
+        } catch (SQLException e) {
+            if (DeadLetters.isRefused(e)) {
+                return drainEach(batch);
+            }
+
+            failed.incrementAndGet();
+            Log.find(plugin).severe("Unable to flush %s database writes, they will be retried. Error: %s", batch.size(), e.getMessage());
+
+            requeue(batch);
+            return false;
+        }
+    }
+
+    /**
+     * One of the writes was refused, finds out which by running them one at
+     * a time. Refused writes are moved to the dead letters, the rest are
+     * written or queued again.
+     */
+    private boolean drainEach(LinkedHashMap<Key, Object[]> batch) {
+        Iterator<Map.Entry<Key, Object[]>> it = batch.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Key, Object[]> entry = it.next();
+            Map<Key, Object[]> single = Collections.singletonMap(entry.getKey(), entry.getValue());
+
+            try {
+                execute(single);
+                flushed.incrementAndGet();
+            } catch (SQLException e) {
+                if (!DeadLetters.isRefused(e)) {
+                    failed.incrementAndGet();
+                    Log.find(plugin).severe("Unable to flush %s database writes, they will be retried. Error: %s", batch.size(), e.getMessage());
+
+                    requeue(batch);
+                    return false;
+                }
+
+                dropped.incrementAndGet();
+                deadLetters.reject(entry.getKey().sql, entry.getValue(), e);
+            }
+
+            it.remove();
+        }
+
+        return true;
+    }
+
+    private void execute(Map<Key, Object[]> batch) throws SQLException {
+        try {
+            SQLiteWriter writer = database.getWriter();
+
+            // The writer already runs it in one transaction
+            if (writer != null) {
+                writer.execute((c) -> {
+                    executeAll(c, batch);
+                    return null;
+                });
+                return;
+            }
+
+            try (Connection c = database.getPool().borrow()) {
+                c.setAutoCommit(false);
+
+                try {
+                    executeAll(c, batch);
+                    c.commit();
+                } catch (SQLException | RuntimeException e) {
+                    c.rollback();
+                    throw e;
+                }
+            }
+        } finally {
+            invalidate(batch);
+        }
+    }
+
+    private static void executeAll(Connection c, Map<Key, Object[]> batch) throws SQLException {
+        List<Object[]> run = Lists.newArrayList();
+        String sql = null;
+
+        // Consecutive writes with the same SQL go into one JDBC batch, order is kept
+        for (Map.Entry<Key, Object[]> entry : batch.entrySet()) {
+            if (sql != null && !sql.equals(entry.getKey().sql)) {
+                executeBatch(c, sql, run);
+                run.clear();
+            }
+
+            sql = entry.getKey().sql;
+            run.add(entry.getValue());
+        }
+
+        executeBatch(c, sql, run);
+    }
+
+    private void invalidate(Map<Key, Object[]> batch) {
+        String last = null;
+
+        for (Key key : batch.keySet()) {
+            if (!key.sql.equals(last)) {
+                database.invalidate(key.sql);
+                last = key.sql;
+            }
+        }
+    }
+
+    private static void executeBatch(Connection c, String sql, List<Object[]> rows) throws SQLException {
+        QueryMetrics.Sample sample = QueryMetrics.begin(sql);
+                            sample.acquired();
+
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                Query.bind(ps, row);
+                ps.addBatch();
+            }
+
+            ps.executeBatch();
+
+            sample.rows(rows.size());
+            sample.end(false);
+        } finally {
+            sample.end(true);
+        }
+    }
+
+    private void requeue(LinkedHashMap<Key, Object[]> batch) {
+        lock.lock();
+
+        try {
+            // Anything written while flushing is newer than what failed
+            for (Map.Entry<Key, Object[]> entry : pending.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+
+            this.pending = batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Key {
+        private final String sql;
+        private final Object key;
+
+        private Key(String sql, Object key) {
+            this.sql = sql;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key) || key == null) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return sql.equals(other.sql) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key == null ? System.identityHashCode(this) : sql.hashCode() * 31 + key.hashCode();
+        }
+    }
+}
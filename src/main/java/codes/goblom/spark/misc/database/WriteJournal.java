@@ -0,0 +1,845 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.Log;
+import codes.goblom.spark.SparkPlugin;
+import codes.goblom.spark.configuration.Config;
+import codes.goblom.spark.internals.tools.Histogram;
+import codes.goblom.spark.misc.Database;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import lombok.Getter;
+
+/**
+ * An append only log of database writes on local disk, replayed to the
+ * database in order by a thread of its own. While the database is slow or
+ * down writes still only take as long as writing to a local file, and they
+ * are replayed once it is back, even after a restart.
+ *
+ * <pre>
+ * db.enableJournal(plugin, new WriteJournal.Settings());
+ *
+ * db.query("UPDATE players SET coins = ? WHERE uuid = ?").bind(coins, uuid).executeJournaled();
+ * </pre>
+ *
+ * The journal is a folder of segment files of about
+ * {@link Settings#segmentSize} each. Every record is its length, a CRC32 and
+ * the statement with its values. The position replayed up to is kept in a
+ * checkpoint file, written after every batch, and segments before it are
+ * deleted. A record that was only half written when the server died is cut
+ * off when the journal is opened again.
+ *
+ * Records are replayed {@link Settings#batchSize} at a time in a
+ * transaction. A batch that fails because the database cannot be reached is
+ * retried every {@link Settings#retryInterval} until it succeeds. A statement
+ * the database refuses, bad SQL or a broken constraint, is written to
+ * {@code rejected.log} in the journal folder and skipped, it would never
+ * succeed.
+ *
+ * Records reach the operating system as soon as they are appended, so they
+ * survive the server crashing. They survive the machine losing power only
+ * with {@link Settings#fsync}, which makes every append wait for the disk.
+ *
+ * Journaled writes are only ordered among themselves. A read may not see
+ * them until they have been replayed, and a write made directly may run
+ * before a journaled one made earlier.
+ *
+ * Values can be null, strings, numbers, booleans, byte arrays, UUIDs,
+ * enums and dates.
+ *
+ * @author Goblom
+ */
+public final class WriteJournal implements AutoCloseable {
+
+    /**
+     * Times are in milliseconds
+     */
+    public static final class Settings {
+        public long segmentSize = 16L * 1024L * 1024L;
+        public int batchSize = 500;
+        public long retryInterval = 1000;
+
+        /**
+         * How long closing waits for the backlog to be replayed, whatever is
+         * left is replayed the next time the journal is opened
+         */
+        public long closeTimeout = 5000;
+
+        /**
+         * Wait for every append to reach the disk
+         */
+        public boolean fsync = false;
+
+        /**
+         * Reads the settings under {@code journal} in a config, missing
+         * values are left at the defaults
+         */
+        public static Settings from(Config cfg, Settings defaults) {
+            Settings s = new Settings();
+                     s.segmentSize = cfg.get("journal.segment-size-mb", (int) (defaults.segmentSize / 1024 / 1024)) * 1024L * 1024L;
+                     s.batchSize = cfg.get("journal.batch-size", defaults.batchSize);
+                     s.retryInterval = cfg.get("journal.retry-interval-ms", (int) defaults.retryInterval);
+                     s.closeTimeout = cfg.get("journal.close-timeout-ms", (int) defaults.closeTimeout);
+                     s.fsync = cfg.get("journal.fsync", defaults.fsync);
+
+            return s;
+        }
+    }
+
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String REJECTED = "rejected.log";
+    private static final int HEADER = 8;
+
+    private static final byte NULL = 0, STRING = 1, INT = 2, LONG = 3, DOUBLE = 4, FLOAT = 5, BOOLEAN = 6, BYTES = 7, TIMESTAMP = 8, DECIMAL = 9;
+
+    private final SparkPlugin plugin;
+    private final Database database;
+    private final File folder;
+    private final DeadLetters deadLetters;
+
+    @Getter
+    private final Settings settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private FileChannel out;
+    private long outSegment;
+    private long outPosition;
+    private boolean closed = false;
+
+    // Only used by the replay thread
+    private FileChannel in;
+    private long readSegment;
+    private long readPosition;
+    private boolean failing = false;
+
+    private final Thread replayer;
+
+    /**
+     * Nanoseconds taken to replay each batch
+     */
+    @Getter
+    private final Histogram replayLatency = new Histogram();
+
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong backlog = new AtomicLong();
+
+    /**
+     * Opens the journal in the folder, anything left in it from before is
+     * replayed first
+     */
+    public WriteJournal(SparkPlugin plugin, Database database, File folder, Settings settings) throws IOException {
+        this.plugin = plugin;
+        this.database = database;
+        this.folder = folder;
+        this.deadLetters = new DeadLetters(plugin, new File(folder, REJECTED));
+        this.settings = settings;
+
+        open();
+
+        this.replayer = new Thread(this::run, "Spark Write Journal - " + plugin.getName());
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+
+        plugin.closeOnDisable(this);
+    }
+
+    /**
+     * Appends a write to the journal
+     *
+     * @return false if the journal has been closed or could not be written
+     * to, the write was not journaled
+     * @throws IllegalArgumentException if a value is of a type that cannot
+     * be journaled
+     */
+    public boolean append(String sql, Object... values) {
+        return appendAll(sql, Collections.singletonList(values)) == 1;
+    }
+
+    /**
+     * Appends the same statement once for every row, in order. Every row is
+     * checked before any is written, so a value that cannot be journaled
+     * leaves the journal as it was.
+     *
+     * @return the number of rows appended, counted from the first. The rest
+     * were not journaled because the journal has been closed or could not be
+     * written to.
+     * @throws IllegalArgumentException if a value is of a type that cannot
+     * be journaled, nothing was appended
+     */
+    public int appendAll(String sql, List<Object[]> rows) {
+        List<ByteBuffer> records = Lists.newArrayListWithCapacity(rows.size());
+
+        for (Object[] values : rows) {
+            records.add(encode(sql, values == null ? new Object[0] : values));
+        }
+
+        lock.lock();
+
+        try {
+            int appended = 0;
+
+            while (appended < records.size() && write(records.get(appended))) {
+                appended++;
+            }
+
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock
+    private boolean write(ByteBuffer record) {
+        if (closed) {
+            return false;
+        }
+
+        try {
+            if (outPosition > 0 && outPosition + record.remaining() > settings.segmentSize) {
+                roll();
+            }
+
+            int length = record.remaining();
+
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+
+            if (settings.fsync) {
+                out.force(false);
+            }
+
+            this.outPosition += length;
+            appends.incrementAndGet();
+            backlog.incrementAndGet();
+            appended.signal();
+
+            return true;
+        } catch (IOException e) {
+            Log.find(plugin).severe("Unable to append to the write journal. Error: %s", e.getMessage());
+
+            try {
+                // Do not leave half a record for the next one to be written after
+                out.truncate(outPosition);
+                out.position(outPosition);
+            } catch (IOException ex) { }
+
+            return false;
+        }
+    }
+
+    /**
+     * @return records waiting to be replayed
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    public long getAppends() {
+        return appends.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return records the database refused, see {@code rejected.log}
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return batches that failed and were retried
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Stops taking writes and gives the replay thread
+     * {@link Settings#closeTimeout} to catch up. Called when the plugin
+     * disables.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+
+        try {
+            if (closed) {
+                return;
+            }
+
+            this.closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            replayer.join(settings.closeTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (replayer.isAlive()) {
+            replayer.interrupt();
+        }
+
+        lock.lock();
+
+        try {
+            out.force(false);
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+
+        if (backlog.get() > 0) {
+            Log.find(plugin).warning("%s journaled database writes will be replayed the next time the journal is opened", backlog.get());
+        }
+    }
+
+    // *****************************
+    // Files
+    // *****************************
+
+    private void open() throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+
+        List<Long> segments = segments();
+        long[] checkpoint = readCheckpoint();
+
+        if (checkpoint == null) {
+            checkpoint = new long[] { segments.isEmpty() ? 0 : segments.get(0), 0 };
+        }
+
+        this.readSegment = checkpoint[0];
+        this.readPosition = checkpoint[1];
+
+        for (long segment : segments) {
+            if (segment < readSegment) {
+                Files.deleteIfExists(segment(segment).toPath());
+            } else if (segment > readSegment && !segment(readSegment).exists()) {
+                // The checkpointed segment is gone, carry on from the next one there is
+                this.readSegment = segment;
+                this.readPosition = 0;
+            }
+        }
+
+        this.outSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.get(segments.size() - 1));
+        this.out = FileChannel.open(segment(outSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Count what is left and cut off a record that was only half written
+        for (long segment = readSegment; segment <= outSegment; segment++) {
+            File file = segment(segment);
+
+            if (!file.exists()) {
+                continue;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = segment == readSegment ? readPosition : 0;
+                Record record;
+
+                while ((record = read(channel, position, channel.size())) != null) {
+                    backlog.incrementAndGet();
+                    position = record.next;
+                }
+
+                if (segment == outSegment) {
+                    if (position < out.size()) {
+                        Log.find(plugin).warning("Cut %s bytes off the end of the write journal, the last write was not finished", out.size() - position);
+                        out.truncate(position);
+                    }
+
+                    this.outPosition = out.size();
+                }
+            }
+        }
+
+        out.position(outPosition);
+    }
+
+    // Must hold the lock
+    private void roll() throws IOException {
+        out.force(false);
+
+        // Opened first, so the current segment is kept if it cannot be
+        FileChannel next = FileChannel.open(segment(outSegment + 1).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel previous = out;
+
+        this.out = next;
+        this.outSegment++;
+        this.outPosition = 0;
+
+        try {
+            previous.close();
+        } catch (IOException e) { } // Already forced to disk
+    }
+
+    private File segment(long segment) {
+        return new File(folder, String.format("segment-%016d.log", segment));
+    }
+
+    private List<Long> segments() {
+        List<Long> segments = Lists.newArrayList();
+        String[] names = folder.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("segment-\\d{16}\\.log")) {
+                    segments.add(Long.parseLong(name.substring(8, 24)));
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File file = new File(folder, CHECKPOINT);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+        if (buffer.remaining() < 16) {
+            return null;
+        }
+
+        return new long[] { buffer.getLong(), buffer.getLong() };
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(folder, CHECKPOINT + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+                   buffer.putLong(readSegment).putLong(readPosition).flip();
+
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            channel.force(false);
+        }
+
+        Files.move(tmp.toPath(), new File(folder, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // *****************************
+    // Replay
+    // *****************************
+
+    private void run() {
+        try {
+            while (true) {
+                List<Record> batch = readBatch();
+
+                if (batch == null) {
+                    return;
+                }
+
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                if (!replay(batch)) {
+                    if (isClosed()) {
+                        return;
+                    }
+
+                    Thread.sleep(settings.retryInterval);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Log.find(plugin).severe("Unable to read the write journal, replaying has stopped. Error: %s", e.getMessage());
+                e.printStackTrace();
+            }
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) { }
+        }
+    }
+
+    /**
+     * @return the next records, empty if it moved to the next segment, or
+     * null when closed and there is nothing left
+     */
+    private List<Record> readBatch() throws IOException, InterruptedException {
+        long limit;
+        boolean last;
+
+        lock.lock();
+
+        try {
+            while (readSegment == outSegment && readPosition >= outPosition) {
+                if (closed) {
+                    return null;
+                }
+
+                // Checked now and then, so appends that skip fsync still reach the disk in time
+                if (!appended.await(1, TimeUnit.SECONDS)) {
+                    out.force(false);
+                }
+            }
+
+            last = readSegment == outSegment;
+            limit = last ? outPosition : Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+
+        if (in == null) {
+            this.in = FileChannel.open(segment(readSegment).toPath(), StandardOpenOption.READ);
+        }
+
+        limit = Math.min(limit, in.size());
+
+        List<Record> batch = Lists.newArrayList();
+        long position = readPosition;
+        Record record;
+
+        while (batch.size() < settings.batchSize && position < limit && (record = read(in, position, limit)) != null) {
+            batch.add(record);
+            position = record.next;
+        }
+
+        if (batch.isEmpty() && position < limit) {
+            Log.find(plugin).severe("Segment %s of the write journal is damaged at %s, skipping the rest of it", readSegment, position);
+        }
+
+        if (batch.isEmpty() && !last) {
+            nextSegment();
+        } else if (batch.isEmpty()) {
+            // Damaged in the segment still being written to, skip to what has been written since
+            this.readPosition = limit;
+            writeCheckpoint();
+        }
+
+        return batch;
+    }
+
+    private void nextSegment() throws IOException {
+        in.close();
+        this.in = null;
+
+        long finished = readSegment;
+
+        this.readSegment++;
+        this.readPosition = 0;
+
+        writeCheckpoint();
+        Files.deleteIfExists(segment(finished).toPath());
+    }
+
+    /**
+     * @return false if it should be tried again later
+     */
+    private boolean replay(List<Record> batch) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            database.transaction((tx) -> {
+                for (Record record : batch) {
+                    tx.addBatch(record.sql, record.values);
+                }
+
+                return null;
+            });
+
+            replayLatency.record(System.nanoTime() - start);
+            replayed.addAndGet(batch.size());
+            recovered();
+            advance(batch.get(batch.size() - 1), batch.size());
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            if (!DeadLetters.isRefused(e)) {
+                failed(e);
+                return false;
+            }
+        }
+
+        // One of them is refused, find out which by running them one at a time
+        for (Record record : batch) {
+            try {
+                database.transaction((tx) -> tx.update(record.sql, record.values));
+                replayed.incrementAndGet();
+            } catch (SQLException | RuntimeException e) {
+                if (!DeadLetters.isRefused(e)) {
+                    failed(e);
+                    return false;
+                }
+
+                reject(record, e);
+            }
+
+            advance(record, 1);
+        }
+
+        return true;
+    }
+
+    // Logged once per outage, not on every retry
+    private void failed(Exception e) {
+        failures.incrementAndGet();
+
+        if (!failing) {
+            this.failing = true;
+            Log.find(plugin).warning("Unable to replay journaled writes, they will be retried every %sms. Error: %s", settings.retryInterval, e.getMessage());
+        }
+    }
+
+    private void recovered() {
+        if (failing) {
+            this.failing = false;
+            Log.find(plugin).info("Replaying journaled writes again, %s are waiting", backlog.get());
+        }
+    }
+
+    private void advance(Record last, int count) throws IOException {
+        this.readPosition = last.next;
+
+        writeCheckpoint();
+        backlog.addAndGet(-count);
+    }
+
+    private void reject(Record record, Exception error) {
+        rejected.incrementAndGet();
+        deadLetters.reject(record.sql, record.values, error);
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // *****************************
+    // Records
+    // *****************************
+
+    private static ByteBuffer encode(String sql, Object[] values) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + sql.length());
+
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeInt(0); // Length and checksum, filled in below
+            data.writeInt(0);
+
+            writeString(data, sql);
+            data.writeInt(values.length);
+
+            for (Object value : values) {
+                writeValue(data, value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+              crc.update(buffer.array(), HEADER, buffer.limit() - HEADER);
+
+        buffer.putInt(0, buffer.limit() - HEADER);
+        buffer.putInt(4, (int) crc.getValue());
+
+        return buffer;
+    }
+
+    // The same conversions as Query#bind
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(NULL);
+        } else if (value instanceof String || value instanceof UUID || value instanceof Character) {
+            data.writeByte(STRING);
+            writeString(data, value.toString());
+        } else if (value instanceof Enum) {
+            data.writeByte(STRING);
+            writeString(data, ((Enum<?>) value).name());
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            data.writeByte(INT);
+            data.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            data.writeByte(LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            data.writeByte(DOUBLE);
+            data.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            data.writeByte(FLOAT);
+            data.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            data.writeByte(BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof byte[]) {
+            data.writeByte(BYTES);
+            data.writeInt(((byte[]) value).length);
+            data.write((byte[]) value);
+        } else if (value instanceof java.util.Date) {
+            data.writeByte(TIMESTAMP);
+            data.writeLong(((java.util.Date) value).getTime());
+        } else if (value instanceof BigDecimal) {
+            data.writeByte(DECIMAL);
+            writeString(data, value.toString());
+        } else {
+            throw new IllegalArgumentException("Cannot journal a value of " + value.getClass().getName());
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * @return the record at the position, or null if there is no complete
+     * and intact record there
+     */
+    private static Record read(FileChannel channel, long position, long limit) throws IOException {
+        if (limit - position < HEADER) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+        while (header.hasRemaining() && channel.read(header, position + header.position()) >= 0) { }
+
+        if (header.hasRemaining()) {
+            return null;
+        }
+
+        int length = header.getInt(0);
+
+        if (length < 8 || position + HEADER + length > limit) {
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+
+        while (body.hasRemaining() && channel.read(body, position + HEADER + body.position()) >= 0) { }
+
+        if (body.hasRemaining()) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+              crc.update(body.array(), 0, length);
+
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+
+        body.flip();
+
+        try {
+            String sql = readString(body);
+            Object[] values = new Object[body.getInt()];
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(body);
+            }
+
+            return new Record(sql, values, position + HEADER + length);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object readValue(ByteBuffer body) {
+        byte type = body.get();
+
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(body);
+            case INT:
+                return body.getInt();
+            case LONG:
+                return body.getLong();
+            case DOUBLE:
+                return body.getDouble();
+            case FLOAT:
+                return body.getFloat();
+            case BOOLEAN:
+                return body.get() != 0;
+            case BYTES:
+                byte[] bytes = new byte[body.getInt()];
+                body.get(bytes);
+                return bytes;
+            case TIMESTAMP:
+                return new Timestamp(body.getLong());
+            case DECIMAL:
+                return new BigDecimal(readString(body));
+            default:
+                throw new IllegalStateException("Unknown value type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Record {
+        private final String sql;
+        private final Object[] values;
+        private final long next;
+
+        private Record(String sql, Object[] values, long next) {
+            this.sql = sql;
+            this.values = values;
+            this.next = next;
+        }
+    }
+}
@@ -5,7 +5,6 @@
  */
 package codes.goblom.spark.misc.tools;
 
-import codes.goblom.spark.Log;
 import codes.goblom.spark.SparkPlugin;
 import codes.goblom.spark.internals.Callback;
 import codes.goblom.spark.internals.task.ThreadTask;
@@ -35,48 +34,22 @@ public abstract class SpigotUpdater implements Callback<String> {
     private final String currentVersion;
     private final String postData;
     
-    private HttpURLConnection connection;
-    
     public SpigotUpdater(SparkPlugin plugin, int resourceId) {
         this.resourceId = resourceId;
         this.currentVersion = plugin.getDescription().getVersion();
         this.postData = String.format(DATA, API_KEY, resourceId);
         
-        ThreadTask urlTask = new ThreadTask<HttpURLConnection>((HttpURLConnection object, Throwable error) -> {
-            if (error != null) {
-                Log.find(plugin).severe("Unable to contact spigot in order to run update check", error.getMessage());
-                
-                return;
-            }
-            
-            this.connection = object;
-        }) {
-            @Override
-            public HttpURLConnection execute() throws Throwable {
-                return (HttpURLConnection) new URL(QUERY).openConnection();
-            }
-        };
-        
-        urlTask.start();
-        
         new ThreadTask<String>(this) {
             @Override
             public String execute() throws Throwable {
-                try {
-                    urlTask.join();
-                } catch (Exception e) { }
-                
-                if (connection == null) {
-                    return "CONNECTION_WAS_NULL";
-                }
-                
-                connection.setDoOutput(true);
-                connection.setRequestMethod("POST");
-                connection.getOutputStream().write(postData.getBytes("UTF-8"));
+                HttpURLConnection connection = (HttpURLConnection) new URL(QUERY).openConnection();
+                                  connection.setDoOutput(true);
+                                  connection.setRequestMethod("POST");
+                                  connection.getOutputStream().write(postData.getBytes("UTF-8"));
                 
                 return new BufferedReader(new InputStreamReader(connection.getInputStream())).readLine();
             }
-        }.start();
+        }.with(plugin).start();
     }
     
     @Override
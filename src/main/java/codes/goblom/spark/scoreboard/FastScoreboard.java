@@ -35,6 +35,7 @@ import org.bukkit.scoreboard.Team;
  *
  * @author Goblom
  */
+@Monitor.Manual
 public class FastScoreboard extends Monitor {
 
 //    public static void main(String[] args) {
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Goblom.
+ * 
+ * All Rights Reserved unless otherwise explicitly stated.
+ */
+package codes.goblom.spark.misc.database;
+
+import codes.goblom.spark.SparkPlugin;
+import codes.goblom.spark.misc.Database;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays a journal into an SQLite database in a temporary folder.
+ *
+ * @author Goblom
+ */
+public class WriteJournalTest {
+
+    private static final String INSERT = "INSERT INTO players (id, name) VALUES (?, ?)";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private SparkPlugin plugin;
+    private Database database;
+    private String url;
+    private File folder;
+    private WriteJournal.Settings settings;
+
+    @Before
+    public void setUp() throws Exception {
+        this.plugin = mock(SparkPlugin.class);
+        when(plugin.getName()).thenReturn("WriteJournalTest");
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("WriteJournalTest"));
+
+        File file = new File(temp.getRoot(), "players.db");
+
+        this.url = "jdbc:sqlite:" + file.getAbsolutePath();
+        this.folder = new File(temp.getRoot(), "journal");
+
+        try (Connection c = DriverManager.getConnection(url); Statement st = c.createStatement()) {
+            st.execute("CREATE TABLE players (id INTEGER PRIMARY KEY, name TEXT)");
+        }
+
+        this.database = new Database(file);
+
+        // Small enough that a few hundred writes roll over several segments
+        this.settings = new WriteJournal.Settings();
+        this.settings.segmentSize = 1024;
+        this.settings.retryInterval = 50;
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        WriteJournal journal = new WriteJournal(plugin, database, folder, settings);
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(journal.append(INSERT, i, "player" + i));
+        }
+
+        awaitReplayed(journal);
+        journal.close();
+
+        journal = new WriteJournal(plugin, database, folder, settings);
+
+        assertEquals("Writes before the checkpoint were counted again", 0, journal.getBacklog());
+        assertEquals("Segments before the checkpoint were not deleted", 1, segments().length);
+
+        for (int i = 200; i < 250; i++) {
+            assertTrue(journal.append(INSERT, i, "player" + i));
+        }
+
+        awaitReplayed(journal);
+        journal.close();
+
+        // A write replayed twice would have been refused for its duplicate id
+        assertEquals(0, journal.getRejected());
+        assertEquals(250, count());
+    }
+
+    @Test
+    public void cutsOffTornTail() throws Exception {
+        WriteJournal journal = new WriteJournal(plugin, database, folder, settings);
+
+        for (int i = 0; i < 10; i++) {
+            journal.append(INSERT, i, "player" + i);
+        }
+
+        awaitReplayed(journal);
+        journal.close();
+
+        File[] segments = segments();
+        File last = segments[segments.length - 1];
+        long length = last.length();
+
+        // A record that claims 100 bytes but was cut off after 3
+        try (FileOutputStream out = new FileOutputStream(last, true)) {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        }
+
+        journal = new WriteJournal(plugin, database, folder, settings);
+
+        assertEquals(length, last.length());
+        assertEquals(0, journal.getBacklog());
+
+        for (int i = 10; i < 20; i++) {
+            journal.append(INSERT, i, "player" + i);
+        }
+
+        awaitReplayed(journal);
+        journal.close();
+
+        assertEquals(0, journal.getRejected());
+        assertEquals(20, count());
+    }
+
+    @Test
+    public void deadLettersRefusedWrites() throws Exception {
+        WriteJournal journal = new WriteJournal(plugin, database, folder, settings);
+
+        journal.append(INSERT, 1, "first");
+        journal.append("INSERT INTO missing (id) VALUES (?)", 2);
+        journal.append(INSERT, 1, "duplicate");
+        journal.append(INSERT, 3, "after");
+
+        awaitReplayed(journal);
+        journal.close();
+
+        assertEquals(2, journal.getRejected());
+        assertEquals("Refused writes held up the ones behind them", 2, count());
+
+        List<String> lines = Files.readAllLines(new File(folder, "rejected.log").toPath(), StandardCharsets.UTF_8);
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("INSERT INTO missing"));
+        assertTrue(lines.get(1).contains("duplicate"));
+        assertFalse(lines.get(1).contains("after"));
+    }
+
+    private void awaitReplayed(WriteJournal journal) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (journal.getBacklog() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("Timed out waiting for the journal to be replayed", 0, journal.getBacklog());
+    }
+
+    private File[] segments() {
+        File[] segments = folder.listFiles((dir, name) -> name.startsWith("segment-"));
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private int count() throws SQLException {
+        try (Connection c = DriverManager.getConnection(url); Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM players")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}